@@ -0,0 +1,87 @@
+/**
+ * UdpReceiveEngine的简单性能测试，在本机回环地址上比较阻塞模式(一次收一个、立即回复)和批量模式的回显吞吐量：
+ * 1）服务端原样回送每个报文，客户端多个线程各自连续发送window个报文后再收取回复，模拟流水线发送
+ * 2）输出每种模式下客户端每秒收到的回复数(packets/s)和服务端的统计信息
+ * 用法：java org.xottys.server.http.UdpEngineBenchmark [每种模式的秒数，缺省5] [客户端线程数，缺省4] [window，缺省32]
+ * 3）本类放在benchmark源目录中，不编译到web/WEB-INF/classes，不随应用部署；
+ * 批量模式的收益主要来自多核下的多个SO_REUSEPORT通道和减少的系统调用唤醒，单核回环测试中两种模式相差很小
+ * <p>
+ * <br/>Copyright (C), 2017-2018, Steve Chang
+ * <br/>This program is protected by copyright laws.
+ * <br/>Program Name:UdpEngineBenchmark
+ * <br/>Date:May，2018
+ *
+ * @author xottys@163.com
+ * @version 1.0
+ */
+package org.xottys.server.http;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+public class UdpEngineBenchmark {
+    private static final int PORT = 19000;
+
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        int clients = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int window = args.length > 2 ? Integer.parseInt(args[2]) : 32;
+        int threads = Runtime.getRuntime().availableProcessors();
+
+        System.out.println("blocking: " + run(0, threads, seconds, clients, window) + " packets/s");
+        System.out.println("batch:    " + run(64, threads, seconds, clients, window) + " packets/s");
+    }
+
+    private static long run(int batchSize, int threads, int seconds, int clients, int window) throws Exception {
+        UdpReceiveEngine engine = new UdpReceiveEngine(new InetSocketAddress("127.0.0.1", PORT), threads,
+                4 * 1024 * 1024, 2048, (sender, source, data) -> sender.send(data, source));
+        engine.setBatchSize(batchSize);
+        engine.start();
+
+        AtomicBoolean running = new AtomicBoolean(true);
+        LongAdder replies = new LongAdder();
+        Thread[] workers = new Thread[clients];
+        for (int i = 0; i < clients; i++) {
+            workers[i] = new Thread(() -> client(running, replies, window));
+            workers[i].start();
+        }
+        //预热1秒后开始计数
+        Thread.sleep(1000);
+        replies.reset();
+        Thread.sleep(seconds * 1000L);
+        long count = replies.sum();
+        running.set(false);
+        for (Thread worker : workers) worker.join();
+        System.out.println(engine);
+        engine.stop();
+        return count / seconds;
+    }
+
+    private static void client(AtomicBoolean running, LongAdder replies, int window) {
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.connect(new InetSocketAddress("127.0.0.1", PORT));
+            socket.setSoTimeout(20);
+            byte[] payload = new byte[32];
+            DatagramPacket out = new DatagramPacket(payload, payload.length);
+            DatagramPacket in = new DatagramPacket(new byte[2048], 2048);
+            while (running.get()) {
+                for (int i = 0; i < window; i++) socket.send(out);
+                try {
+                    for (int i = 0; i < window; i++) {
+                        socket.receive(in);
+                        replies.increment();
+                    }
+                } catch (SocketTimeoutException e) {
+                    //丢包时不再等待，发送下一批
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
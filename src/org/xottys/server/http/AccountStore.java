@@ -0,0 +1,67 @@
+/**
+ * 本类为HttpServletDemo提供账户存储，以用户名为Key、密码为Value保存在ConcurrentHashMap中：
+ * 1）登录验证、新增、修改密码、删除账户均为按Key的O(1)操作，不再顺序扫描全部账户
+ * 2）读操作无锁，写操作只锁定Key所在的桶，多个请求线程可以同时登录和修改不同账户
+ * 3）新增用putIfAbsent、修改用replace、删除用remove(key,value)，各自都是原子操作，不需要外部同步
+ * <p>
+ * <br/>Copyright (C), 2017-2018, Steve Chang
+ * <br/>This program is protected by copyright laws.
+ * <br/>Program Name:AccountStore
+ * <br/>Date:May，2018
+ *
+ * @author xottys@163.com
+ * @version 1.0
+ */
+package org.xottys.server.http;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+public class AccountStore {
+    //用户名->密码
+    private final ConcurrentMap<String, String> accounts;
+
+    public AccountStore() {
+        accounts = new ConcurrentHashMap<>();
+    }
+
+    //预估账户数量，避免大量账户加入时反复扩容
+    public AccountStore(int expectedSize) {
+        accounts = new ConcurrentHashMap<>(expectedSize);
+    }
+
+    //验证用户名/密码是否正确
+    public boolean validate(String user, String password) {
+        if (user == null || password == null) return false;
+        String stored = accounts.get(user);
+        return stored != null && stored.equals(password);
+    }
+
+    //用户名是否已存在
+    public boolean contains(String user) {
+        return user != null && accounts.containsKey(user);
+    }
+
+    //新增账户，已有同名账户时返回false
+    public boolean add(String user, String password) {
+        return accounts.putIfAbsent(user, password) == null;
+    }
+
+    //修改已有账户的密码，账户不存在时返回false
+    public boolean updatePassword(String user, String password) {
+        return accounts.replace(user, password) != null;
+    }
+
+    //删除用户名/密码都匹配的账户
+    public boolean remove(String user, String password) {
+        return user != null && password != null && accounts.remove(user, password);
+    }
+
+    public int size() {
+        return accounts.size();
+    }
+
+    public void clear() {
+        accounts.clear();
+    }
+}
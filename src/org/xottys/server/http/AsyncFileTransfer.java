@@ -0,0 +1,306 @@
+/**
+ * 本类为UpDownServletDemo提供Servlet 3.1非阻塞I/O方式的上传下载，传输过程中不占用容器线程：
+ * 1）Download实现WriteListener：只有在ServletOutputStream.isReady()时才从文件或缓存中读一块数据写出，
+ * 写不下时直接返回，等socket可写时容器再回调onWritePossible()
+ * 2）Upload实现ReadListener：只有在ServletInputStream.isReady()时才读取已到达的数据并写入临时文件，
+ * 全部读完后在onAllDataRead()中校验长度和校验和，再原子重命名为目标文件
+ * 3）每个传输只占用一个池化的缓冲区，慢客户端再多也只是占用少量内存，不会耗尽容器的工作线程
+ * 4）文件和临时文件在startAsync()之前打开，打开失败时请求仍是同步的，由调用者正常返回错误；
+ * 之后的任何失败和超时都会释放资源并调用AsyncContext.complete()，请求不会一直挂起
+ * <p>
+ * <br/>Copyright (C), 2017-2018, Steve Chang
+ * <br/>This program is protected by copyright laws.
+ * <br/>Program Name:AsyncFileTransfer
+ * <br/>Date:May，2018
+ *
+ * @author xottys@163.com
+ * @version 1.0
+ */
+package org.xottys.server.http;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
+import java.util.zip.Checksum;
+
+public class AsyncFileTransfer {
+    //每次传输使用的缓冲区大小
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final BufferPool bufferPool = new BufferPool(BUFFER_SIZE, 256, false);
+    //临时文件目录，必须与目标文件在同一文件系统上才能原子重命名
+    private final File tempDir;
+    //异步请求的超时时间(毫秒)，超时后结束传输并释放资源
+    private final long timeout;
+
+    public AsyncFileTransfer(File tempDir, long timeout) {
+        this.tempDir = tempDir;
+        this.timeout = timeout;
+    }
+
+    //开始异步发送文件的[position,position+count)部分，cached不为null时从缓存内容发送
+    public void download(HttpServletRequest request, HttpServletResponse response, File file, ByteBuffer cached,
+                         long position, long count) throws IOException {
+        //先打开文件，文件不存在等错误发生在startAsync()之前
+        ServletOutputStream out = response.getOutputStream();
+        FileChannel channel = cached == null ? FileChannel.open(file.toPath(), StandardOpenOption.READ) : null;
+        Download download = null;
+        try {
+            AsyncContext context = request.startAsync();
+            context.setTimeout(timeout);
+            download = new Download(context, out, channel, cached, position, count);
+            context.addListener(download);
+            out.setWriteListener(download);
+        } catch (RuntimeException e) {
+            if (download != null) {
+                response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+                download.finish();
+            } else if (channel != null) {
+                channel.close();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * 开始异步接收文件，结束后调用onFinish，参数为null表示成功，否则为失败原因
+     * @param expectedLength 已知的文件长度，未知时为-1
+     * @param checksum 边接收边计算的校验和，为null时不校验
+     */
+    public void upload(HttpServletRequest request, File target, long expectedLength, Checksum checksum,
+                       long expectedChecksum, Consumer<String> onFinish) throws IOException {
+        //先创建临时文件，失败时请求仍是同步的
+        ServletInputStream in = request.getInputStream();
+        Path temp = Files.createTempFile(tempDir.toPath(), target.getName() + ".", ".part");
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(temp, StandardOpenOption.WRITE);
+        } catch (IOException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        Upload upload = null;
+        try {
+            AsyncContext context = request.startAsync();
+            context.setTimeout(timeout);
+            upload = new Upload(context, in, channel, temp, target, expectedLength, checksum, expectedChecksum,
+                    onFinish);
+            context.addListener(upload);
+            in.setReadListener(upload);
+        } catch (RuntimeException e) {
+            channel.close();
+            if (upload != null) {
+                upload.finish(String.valueOf(e.getMessage()));
+            } else {
+                Files.deleteIfExists(temp);
+            }
+            throw e;
+        }
+    }
+
+    //非阻塞下载
+    private class Download implements WriteListener, AsyncListener {
+        private final AsyncContext context;
+        private final ServletOutputStream out;
+        private final FileChannel channel;
+        private final ByteBuffer cached;
+        private final ByteBuffer buffer;
+        private long position;
+        private long remaining;
+        private boolean finished;
+
+        Download(AsyncContext context, ServletOutputStream out, FileChannel channel, ByteBuffer cached,
+                 long position, long count) {
+            this.context = context;
+            this.out = out;
+            this.channel = channel;
+            this.cached = cached == null ? null : cached.duplicate();
+            this.buffer = bufferPool.acquire();
+            this.position = position;
+            this.remaining = count;
+        }
+
+        @Override
+        public void onWritePossible() throws IOException {
+            byte[] array = buffer.array();
+            //isReady()返回false时本次回调结束，socket可写后容器会再次回调
+            while (remaining > 0 && out.isReady()) {
+                int n = (int) Math.min(array.length, remaining);
+                if (cached != null) {
+                    cached.limit((int) (position + n)).position((int) position);
+                    cached.get(array, 0, n);
+                } else {
+                    buffer.clear().limit(n);
+                    n = channel.read(buffer, position);
+                    if (n < 0) throw new IOException("文件长度不足");
+                }
+                out.write(array, 0, n);
+                position += n;
+                remaining -= n;
+            }
+            if (remaining == 0 && out.isReady()) finish();
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            t.printStackTrace();
+            finish();
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+            System.out.println("异步下载超时，剩余" + remaining + "字节");
+            finish();
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+            finish();
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) {
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+        }
+
+        //可能被多次调用(如出错后又超时)，只结束一次
+        private synchronized void finish() {
+            if (finished) return;
+            finished = true;
+            bufferPool.release(buffer);
+            try {
+                if (channel != null) channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            context.complete();
+        }
+    }
+
+    //非阻塞上传
+    private class Upload implements ReadListener, AsyncListener {
+        private final AsyncContext context;
+        private final ServletInputStream in;
+        private final FileChannel channel;
+        private final Path temp;
+        private final File target;
+        private final long expectedLength;
+        private final Checksum checksum;
+        private final long expectedChecksum;
+        private final Consumer<String> onFinish;
+        private final ByteBuffer buffer;
+        private long written;
+        private boolean finished;
+
+        Upload(AsyncContext context, ServletInputStream in, FileChannel channel, Path temp, File target,
+               long expectedLength, Checksum checksum, long expectedChecksum, Consumer<String> onFinish) {
+            this.context = context;
+            this.in = in;
+            this.channel = channel;
+            this.temp = temp;
+            this.target = target;
+            this.expectedLength = expectedLength;
+            this.checksum = checksum;
+            this.expectedChecksum = expectedChecksum;
+            this.onFinish = onFinish;
+            this.buffer = bufferPool.acquire();
+        }
+
+        @Override
+        public void onDataAvailable() throws IOException {
+            byte[] array = buffer.array();
+            int n;
+            //只读取已经到达的数据，isReady()返回false时等待下一次回调
+            while (in.isReady() && (n = in.read(array)) >= 0) {
+                if (checksum != null) checksum.update(array, 0, n);
+                buffer.clear().limit(n);
+                while (buffer.hasRemaining()) channel.write(buffer, written + n - buffer.remaining());
+                written += n;
+            }
+        }
+
+        @Override
+        public void onAllDataRead() throws IOException {
+            String error = null;
+            try {
+                channel.close();
+                if (expectedLength >= 0 && written != expectedLength)
+                    error = "文件长度不符：" + written + "/" + expectedLength;
+                else if (checksum != null && checksum.getValue() != expectedChecksum)
+                    error = "校验和不一致：" + Long.toHexString(checksum.getValue())
+                            + "/" + Long.toHexString(expectedChecksum);
+                else
+                    FileReceiver.commit(temp, target.toPath());
+            } catch (IOException e) {
+                e.printStackTrace();
+                error = e.getMessage();
+            }
+            finish(error);
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            t.printStackTrace();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            finish(String.valueOf(t.getMessage()));
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            finish("上传超时");
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+            onError(event.getThrowable() == null ? new IOException("上传失败") : event.getThrowable());
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) {
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+        }
+
+        //可能被多次调用(如出错后又超时)，只结束一次
+        private synchronized void finish(String error) {
+            if (finished) return;
+            finished = true;
+            bufferPool.release(buffer);
+            try {
+                if (error != null) Files.deleteIfExists(temp);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            onFinish.accept(error);
+            context.complete();
+        }
+    }
+}
@@ -0,0 +1,55 @@
+/**
+ * 本类是一个固定大小的ByteBuffer缓冲池，供文件上传下载等大数据量读写循环复用：
+ * 1）每个缓冲区大小固定，每次传输只占用一个缓冲区，占用的内存与文件大小无关
+ * 2）acquire()优先从池中取出空闲缓冲区，池空时临时分配一个新的
+ * 3）release()把缓冲区清空后放回池中，池满时直接丢弃，交给GC回收
+ * 4）direct为true时分配堆外缓冲区(ByteBuffer.allocateDirect)，适合直接与FileChannel/SocketChannel读写
+ * <p>
+ * <br/>Copyright (C), 2017-2018, Steve Chang
+ * <br/>This program is protected by copyright laws.
+ * <br/>Program Name:BufferPool
+ * <br/>Date:May，2018
+ *
+ * @author xottys@163.com
+ * @version 1.0
+ */
+package org.xottys.server.http;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+public class BufferPool {
+    private final int bufferSize;
+    private final boolean direct;
+    private final BlockingQueue<ByteBuffer> pool;
+
+    public BufferPool(int bufferSize, int maxPooled, boolean direct) {
+        this.bufferSize = bufferSize;
+        this.direct = direct;
+        this.pool = new ArrayBlockingQueue<>(maxPooled);
+    }
+
+    //取出一个已清空、可写入的缓冲区
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = pool.poll();
+        if (buffer == null)
+            buffer = direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+        return buffer;
+    }
+
+    //用完后归还缓冲区
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || buffer.capacity() != bufferSize || buffer.isDirect() != direct) return;
+        buffer.clear();
+        pool.offer(buffer);
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public boolean isDirect() {
+        return direct;
+    }
+}
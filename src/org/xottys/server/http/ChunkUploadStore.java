@@ -0,0 +1,369 @@
+/**
+ * 本类管理UpDownServletDemo的分块上传会话，支持大文件并行、乱序、断点续传：
+ * 1）create()建立会话：按文件长度和块大小计算块数，在临时目录中生成数据文件(预先扩展到最终长度)、描述文件和位图文件
+ * 2）Session.writeChunk()把第N块直接写到数据文件的N*chunkSize位置(FileChannel按位置写)，多个块可以同时写入
+ * 3）每块写完并刷盘后才在位图中标记，并立即把位图中对应的字节写回位图文件并刷盘，服务器重启或崩溃后可以从磁盘恢复会话
+ * 4）Session.getMissingChunks()返回尚未收到的块号，客户端据此只重传缺少的块
+ * 5）全部块收到后Session.commit()把数据文件原子重命名为目标文件，并删除描述文件和位图文件
+ * 6）文件长度不超过MAX_FILE_SIZE(与multipart上传的上限相同)，超过idleTimeout没有写入的会话被定时清理：
+ * 关闭文件并删除会话文件，服务器重启后遗留在磁盘上的过期会话文件也一并删除
+ * 7）提交、放弃和过期清理先在sessions锁中把会话移出并记入closing，释放锁后再等待写入完成、关闭文件和重命名/删除，
+ * 一个慢的上传不会阻塞其他会话的get()；从磁盘恢复时跳过closing中的会话，不会在提交重命名的同时重新打开数据文件。
+ * 写块时持有会话的读锁(多个块仍可同时写入)，关闭文件前要取得写锁，文件不会在写入中途被关闭
+ * <p>
+ * <br/>Copyright (C), 2017-2018, Steve Chang
+ * <br/>This program is protected by copyright laws.
+ * <br/>Program Name:ChunkUploadStore
+ * <br/>Date:May，2018
+ *
+ * @author xottys@163.com
+ * @version 1.0
+ */
+package org.xottys.server.http;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+public class ChunkUploadStore {
+    //块大小的上下限
+    public static final int MIN_CHUNK_SIZE = 64 * 1024;
+    public static final int MAX_CHUNK_SIZE = 64 * 1024 * 1024;
+    //文件最大不超过500M Bytes
+    public static final long MAX_FILE_SIZE = 500 * 1024 * 1024;
+
+    //会话文件所在目录，必须与保存目录在同一文件系统上才能原子重命名
+    private final File dir;
+    private final FileReceiver fileReceiver;
+    private final ConcurrentMap<String, Session> sessions = new ConcurrentHashMap<>();
+    //已移出sessions、正在关闭文件的会话，只在synchronized(sessions)中访问
+    private final Set<String> closing = new HashSet<>();
+    private final long idleTimeout;
+    private final ScheduledExecutorService expirer;
+
+    //idleTimeout单位为毫秒，会话超过该时间没有写入时被清理
+    public ChunkUploadStore(File dir, FileReceiver fileReceiver, long idleTimeout) {
+        this.dir = dir;
+        this.fileReceiver = fileReceiver;
+        this.idleTimeout = idleTimeout;
+        expirer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "ChunkUploadStore");
+            t.setDaemon(true);
+            return t;
+        });
+        long period = Math.max(1000, Math.min(idleTimeout, 60 * 1000));
+        expirer.scheduleWithFixedDelay(this::expire, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    //建立新的上传会话
+    public Session create(String fileName, long size, int chunkSize) throws IOException {
+        if (size <= 0 || size > MAX_FILE_SIZE) throw new IOException("文件长度无效：" + size);
+        if (chunkSize < MIN_CHUNK_SIZE || chunkSize > MAX_CHUNK_SIZE)
+            throw new IOException("块大小无效：" + chunkSize);
+        long chunkCount = (size + chunkSize - 1) / chunkSize;
+        if (chunkCount > Integer.MAX_VALUE) throw new IOException("块数过多：" + chunkCount);
+
+        String id = UUID.randomUUID().toString().replace("-", "");
+        Session session = new Session(id, fileName, size, chunkSize, (int) chunkCount, new BitSet());
+        session.writeMeta();
+        session.open(true);
+        sessions.put(id, session);
+        return session;
+    }
+
+    //获取会话，内存中没有时从磁盘恢复，不存在时返回null
+    public Session get(String id) throws IOException {
+        if (id == null || !id.matches("[0-9a-f]{32}")) return null;
+        Session session = sessions.get(id);
+        if (session == null) {
+            synchronized (sessions) {
+                session = sessions.get(id);
+                if (session == null) {
+                    session = load(id);
+                    if (session != null) sessions.put(id, session);
+                }
+            }
+        }
+        if (session != null) session.lastAccess = System.currentTimeMillis();
+        return session;
+    }
+
+    //关闭所有会话的文件，会话文件保留在磁盘上，下次可以继续上传
+    public void close() {
+        expirer.shutdownNow();
+        List<Session> all;
+        synchronized (sessions) {
+            all = new ArrayList<>(sessions.values());
+            sessions.clear();
+        }
+        for (Session session : all) session.closeChannels();
+    }
+
+    //清理超过idleTimeout没有写入的会话，以及磁盘上遗留的过期会话文件
+    private void expire() {
+        long now = System.currentTimeMillis();
+        //在锁外放弃过期的会话
+        for (Session session : sessions.values()) {
+            //正在写入的会话不清理
+            if (now - session.lastAccess <= idleTimeout || session.isWriting()) continue;
+            try {
+                session.abort();
+                System.out.println("分块上传会话超时，已删除：" + session.id);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        synchronized (sessions) {
+            File[] metas = dir.listFiles((d, name) -> name.matches("[0-9a-f]{32}\\.meta"));
+            if (metas == null) return;
+            for (File meta : metas) {
+                String id = meta.getName().substring(0, 32);
+                File bitmap = new File(dir, id + ".bitmap");
+                if (sessions.containsKey(id) || closing.contains(id)
+                        || now - Math.max(meta.lastModified(), bitmap.lastModified()) <= idleTimeout) continue;
+                try {
+                    deleteFiles(id);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private void deleteFiles(String id) throws IOException {
+        Files.deleteIfExists(new File(dir, id + ".data").toPath());
+        Files.deleteIfExists(new File(dir, id + ".meta").toPath());
+        Files.deleteIfExists(new File(dir, id + ".bitmap").toPath());
+    }
+
+    //调用时已同步在sessions上
+    private Session load(String id) throws IOException {
+        //正在提交或放弃的会话不能重新打开
+        if (closing.contains(id)) return null;
+        Path metaPath = new File(dir, id + ".meta").toPath();
+        if (!Files.exists(metaPath)) return null;
+        //数据文件已不存在说明会话已提交(重命名后未来得及删除其他文件)，不能再重新打开
+        if (!Files.exists(new File(dir, id + ".data").toPath())) {
+            deleteFiles(id);
+            return null;
+        }
+
+        Properties meta = new Properties();
+        try (Reader reader = Files.newBufferedReader(metaPath, StandardCharsets.UTF_8)) {
+            meta.load(reader);
+        }
+        BitSet received = BitSet.valueOf(Files.readAllBytes(new File(dir, id + ".bitmap").toPath()));
+        Session session = new Session(id, meta.getProperty("filename"), Long.parseLong(meta.getProperty("size")),
+                Integer.parseInt(meta.getProperty("chunkSize")), Integer.parseInt(meta.getProperty("chunkCount")),
+                received);
+        session.open(false);
+        return session;
+    }
+
+    //一个分块上传会话
+    public class Session {
+        private final String id;
+        private final String fileName;
+        private final long size;
+        private final int chunkSize;
+        private final int chunkCount;
+        //已收到的块，访问时需同步在本对象上
+        private final BitSet received;
+        private FileChannel data;
+        private FileChannel bitmap;
+        private boolean finished;
+        //写块时持有读锁，关闭文件前取得写锁
+        private final ReentrantReadWriteLock channelLock = new ReentrantReadWriteLock();
+        private volatile long lastAccess = System.currentTimeMillis();
+
+        Session(String id, String fileName, long size, int chunkSize, int chunkCount, BitSet received) {
+            this.id = id;
+            this.fileName = fileName;
+            this.size = size;
+            this.chunkSize = chunkSize;
+            this.chunkCount = chunkCount;
+            this.received = received;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getFileName() {
+            return fileName;
+        }
+
+        public int getChunkSize() {
+            return chunkSize;
+        }
+
+        public int getChunkCount() {
+            return chunkCount;
+        }
+
+        //第index块的长度，最后一块可能不足chunkSize
+        public long getChunkLength(int index) {
+            return Math.min(chunkSize, size - (long) index * chunkSize);
+        }
+
+        //把第index块写到数据文件的对应位置，可以被多个线程同时调用
+        public void writeChunk(int index, InputStream in) throws IOException {
+            if (index < 0 || index >= chunkCount) throw new IOException("块号无效：" + index);
+            channelLock.readLock().lock();
+            try {
+                synchronized (this) {
+                    if (finished) throw new IOException("上传会话已结束：" + id);
+                }
+                lastAccess = System.currentTimeMillis();
+                long length = getChunkLength(index);
+                fileReceiver.receiveAt(in, data, (long) index * chunkSize, length);
+                //数据落盘后再标记，避免位图记录了实际没有写入的块
+                data.force(false);
+                markReceived(index);
+            } finally {
+                channelLock.readLock().unlock();
+            }
+            lastAccess = System.currentTimeMillis();
+        }
+
+        private boolean isWriting() {
+            return channelLock.getReadLockCount() > 0;
+        }
+
+        //尚未收到的块号
+        public synchronized List<Integer> getMissingChunks() {
+            List<Integer> missing = new ArrayList<>();
+            for (int i = received.nextClearBit(0); i < chunkCount; i = received.nextClearBit(i + 1))
+                missing.add(i);
+            return missing;
+        }
+
+        public synchronized boolean isComplete() {
+            return received.cardinality() == chunkCount;
+        }
+
+        //所有块收到后把数据文件原子重命名为目标文件
+        public void commit(File target) throws IOException {
+            synchronized (sessions) {
+                synchronized (this) {
+                    if (finished) throw new IOException("上传会话已结束：" + id);
+                    if (!isComplete())
+                        throw new IOException("还有" + (chunkCount - received.cardinality()) + "块未收到");
+                    finished = true;
+                }
+                beginClose();
+            }
+            try {
+                closeChannels();
+                FileReceiver.commit(file(".data"), target.toPath());
+                deleteFiles(id);
+            } finally {
+                endClose();
+            }
+        }
+
+        //放弃上传，删除所有会话文件
+        public void abort() throws IOException {
+            synchronized (sessions) {
+                synchronized (this) {
+                    if (finished) return;
+                    finished = true;
+                }
+                beginClose();
+            }
+            try {
+                closeChannels();
+                deleteFiles(id);
+            } finally {
+                endClose();
+            }
+        }
+
+        //调用时已同步在sessions上：移出sessions，关闭完成前不能从磁盘恢复
+        private void beginClose() {
+            sessions.remove(id, this);
+            closing.add(id);
+        }
+
+        private void endClose() {
+            synchronized (sessions) {
+                closing.remove(id);
+            }
+        }
+
+        private void markReceived(int index) throws IOException {
+            synchronized (this) {
+                if (finished) return;
+                received.set(index);
+                //只写回位图中包含本块的那个字节
+                int byteIndex = index / 8;
+                int bits = 0;
+                for (int i = 0; i < 8; i++)
+                    if (received.get(byteIndex * 8 + i)) bits |= 1 << i;
+                ByteBuffer b = ByteBuffer.allocate(1);
+                b.put(0, (byte) bits);
+                bitmap.write(b, byteIndex);
+                //位图也要落盘，崩溃后才不会把已写入的块当作缺少
+                bitmap.force(false);
+            }
+        }
+
+        private void writeMeta() throws IOException {
+            Properties meta = new Properties();
+            meta.setProperty("filename", fileName);
+            meta.setProperty("size", String.valueOf(size));
+            meta.setProperty("chunkSize", String.valueOf(chunkSize));
+            meta.setProperty("chunkCount", String.valueOf(chunkCount));
+            try (Writer writer = Files.newBufferedWriter(file(".meta"), StandardCharsets.UTF_8)) {
+                meta.store(writer, "chunk upload " + id);
+            }
+        }
+
+        private void open(boolean create) throws IOException {
+            //恢复会话时数据文件必须已存在，不能新建
+            data = create ? FileChannel.open(file(".data"), StandardOpenOption.CREATE, StandardOpenOption.WRITE)
+                    : FileChannel.open(file(".data"), StandardOpenOption.WRITE);
+            bitmap = FileChannel.open(file(".bitmap"), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            //新会话先把数据文件扩展到最终长度
+            if (create) data.write(ByteBuffer.allocate(1), size - 1);
+        }
+
+        //等待正在写入的块完成后再关闭
+        private void closeChannels() {
+            channelLock.writeLock().lock();
+            try {
+                if (data != null) data.close();
+                if (bitmap != null) bitmap.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                channelLock.writeLock().unlock();
+            }
+        }
+
+        private Path file(String suffix) {
+            return new File(dir, id + suffix).toPath();
+        }
+    }
+}
@@ -0,0 +1,228 @@
+/**
+ * 本类为UpDownServletDemo提供gzip/deflate压缩下载，并缓存预先压缩好的文件副本：
+ * 1）negotiate()按Accept-Encoding中的q值协商压缩格式，gzip优先，其次deflate
+ * 2）某个文件第一次被请求压缩时，本次请求边读边压缩直接输出，同时在后台线程中生成压缩副本(sidecar)
+ * 3）压缩副本生成后，之后的请求直接发送压缩副本(可以使用sendfile)，不再重复压缩
+ * 4）压缩副本记录了原文件的ETag，原文件被覆盖后不会再使用旧副本；上传时调用invalidate()删除旧副本
+ * <p>
+ * <br/>Copyright (C), 2017-2018, Steve Chang
+ * <br/>This program is protected by copyright laws.
+ * <br/>Program Name:CompressedVariants
+ * <br/>Date:May，2018
+ *
+ * @author xottys@163.com
+ * @version 1.0
+ */
+package org.xottys.server.http;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+public class CompressedVariants {
+    public static final String GZIP = "gzip";
+    public static final String DEFLATE = "deflate";
+
+    //小于此长度的文件压缩意义不大
+    public static final long MIN_COMPRESS_LENGTH = 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    //压缩副本目录
+    private final File dir;
+    private final BufferPool bufferPool = new BufferPool(BUFFER_SIZE, 32, false);
+    //文件名+压缩格式 -> 已生成的压缩副本
+    private final ConcurrentMap<String, Variant> variants = new ConcurrentHashMap<>();
+    //正在生成的压缩副本，避免同一文件被多个请求重复压缩
+    private final ConcurrentMap<String, Boolean> building = new ConcurrentHashMap<>();
+    private final ExecutorService builder = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "CompressedVariants");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public CompressedVariants(File dir) {
+        this.dir = dir;
+        if (!dir.exists()) dir.mkdirs();
+    }
+
+    //文本类文件才值得压缩
+    public static boolean isCompressible(String fileName, String mimeType) {
+        if (mimeType != null) {
+            if (mimeType.startsWith("text/")) return true;
+            if (mimeType.contains("json") || mimeType.contains("xml") || mimeType.contains("javascript"))
+                return true;
+        }
+        String lower = fileName.toLowerCase();
+        return lower.endsWith(".log") || lower.endsWith(".txt") || lower.endsWith(".json")
+                || lower.endsWith(".csv") || lower.endsWith(".xml");
+    }
+
+    //按Accept-Encoding协商压缩格式，不接受压缩时返回null
+    public static String negotiate(String acceptEncoding) {
+        if (acceptEncoding == null) return null;
+        //-1表示没有明确列出，此时使用*的q值；明确列出的q=0不会被*覆盖
+        float gzip = -1, deflate = -1, any = -1;
+        for (String item : acceptEncoding.split(",")) {
+            String[] parts = item.trim().split(";");
+            String coding = parts[0].trim().toLowerCase();
+            float q = 1;
+            for (int i = 1; i < parts.length; i++) {
+                String param = parts[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        q = Float.parseFloat(param.substring(2));
+                    } catch (NumberFormatException e) {
+                        q = 0;
+                    }
+                }
+            }
+            if (coding.equals(GZIP) || coding.equals("x-gzip")) gzip = Math.max(gzip, q);
+            else if (coding.equals(DEFLATE)) deflate = Math.max(deflate, q);
+            else if (coding.equals("*")) any = Math.max(any, q);
+        }
+        if (gzip < 0) gzip = any;
+        if (deflate < 0) deflate = any;
+        if (gzip > 0 && gzip >= deflate) return GZIP;
+        if (deflate > 0) return DEFLATE;
+        return null;
+    }
+
+    //获取已生成的压缩副本，还没有时安排后台生成并返回null
+    public Variant get(String name, FileMetaCache.FileMeta meta, String encoding) {
+        String key = name + "|" + encoding;
+        Variant variant = variants.get(key);
+        if (variant != null && variant.sourceETag.equals(meta.getETag())) return variant;
+
+        if (building.putIfAbsent(key, Boolean.TRUE) == null) {
+            builder.execute(() -> {
+                try {
+                    build(key, name, meta, encoding);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                } finally {
+                    building.remove(key);
+                }
+            });
+        }
+        return null;
+    }
+
+    //边读边压缩输出，用于压缩副本生成之前的请求
+    public void compress(FileMetaCache.FileMeta meta, String encoding, OutputStream out) throws IOException {
+        DeflaterOutputStream zip;
+        Deflater deflater;
+        if (GZIP.equals(encoding)) {
+            GzipStream gzip = new GzipStream(out);
+            zip = gzip;
+            deflater = gzip.deflater();
+        } else {
+            deflater = new Deflater();
+            zip = new DeflaterOutputStream(out, deflater, BUFFER_SIZE);
+        }
+        //finish()不释放Deflater的本地内存，只有close()才会，而out还要继续使用，所以直接end()
+        try {
+            copy(meta.getFile().toPath(), zip);
+            zip.finish();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    //文件被覆盖或删除后删除其所有压缩副本
+    public void invalidate(String name) {
+        if (name == null) return;
+        remove(name + "|" + GZIP);
+        remove(name + "|" + DEFLATE);
+    }
+
+    public void shutdown() {
+        builder.shutdownNow();
+    }
+
+    //先压缩到临时文件，完成后原子重命名为压缩副本
+    private void build(String key, String name, FileMetaCache.FileMeta meta, String encoding) throws IOException {
+        String suffix = GZIP.equals(encoding) ? ".gz" : ".zz";
+        File target = new File(dir, name + "." + Long.toHexString(meta.getLength()) + "-"
+                + Long.toHexString(meta.getLastModified()) + suffix);
+        Path temp = Files.createTempFile(dir.toPath(), name + ".", ".part");
+        try {
+            try (OutputStream out = Files.newOutputStream(temp)) {
+                compress(meta, encoding, out);
+            }
+            FileReceiver.commit(temp, target.toPath());
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        Variant prev = variants.put(key, new Variant(meta.getETag(), target, target.length()));
+        if (prev != null && !prev.file.equals(target)) Files.deleteIfExists(prev.file.toPath());
+    }
+
+    private void remove(String key) {
+        Variant variant = variants.remove(key);
+        if (variant == null) return;
+        try {
+            Files.deleteIfExists(variant.file.toPath());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    //用池化缓冲区把文件内容复制到输出流
+    private void copy(Path source, OutputStream out) throws IOException {
+        ByteBuffer buffer = bufferPool.acquire();
+        try (FileChannel channel = FileChannel.open(source, StandardOpenOption.READ)) {
+            byte[] array = buffer.array();
+            int n;
+            while ((n = channel.read(buffer)) >= 0) {
+                out.write(array, 0, n);
+                buffer.clear();
+            }
+        } finally {
+            bufferPool.release(buffer);
+        }
+    }
+
+    //GZIPOutputStream不能传入Deflater，通过子类取得其内部的Deflater以便释放
+    private static class GzipStream extends GZIPOutputStream {
+        GzipStream(OutputStream out) throws IOException {
+            super(out, BUFFER_SIZE);
+        }
+
+        Deflater deflater() {
+            return def;
+        }
+    }
+
+    //一个压缩副本
+    public static class Variant {
+        private final String sourceETag;
+        private final File file;
+        private final long length;
+
+        Variant(String sourceETag, File file, long length) {
+            this.sourceETag = sourceETag;
+            this.file = file;
+            this.length = length;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public long getLength() {
+            return length;
+        }
+    }
+}
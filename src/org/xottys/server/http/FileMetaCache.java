@@ -0,0 +1,150 @@
+/**
+ * 本类缓存上传目录中文件的元数据(长度、修改时间、ETag)，供UpDownServletDemo处理条件请求和断点续传：
+ * 1）首次访问某个文件时读取一次磁盘属性，之后的ETag/Last-Modified校验直接使用缓存，不再访问磁盘
+ * 2）通过本服务器上传(POST/PUT/DELETE)覆盖文件后调用invalidate()，下次访问时重新读取
+ * 3）不存在的文件不缓存，以免大量无效文件名占满内存
+ * 4）以规范化后的绝对路径为键(不访问磁盘)，a.txt、./a.txt、sub/../a.txt是同一项，invalidate()也按同样的键清除；
+ * 不在保存目录内的文件名直接返回null。缓存项数有上限，超过时随意移除一部分，被移除的文件下次访问时重新读取
+ * <p>
+ * <br/>Copyright (C), 2017-2018, Steve Chang
+ * <br/>This program is protected by copyright laws.
+ * <br/>Program Name:FileMetaCache
+ * <br/>Date:May，2018
+ *
+ * @author xottys@163.com
+ * @version 1.0
+ */
+package org.xottys.server.http;
+
+import java.io.File;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class FileMetaCache {
+    //规范化后的保存目录
+    private final Path root;
+    private final int maxEntries;
+    private final ConcurrentMap<String, FileMeta> metas = new ConcurrentHashMap<>();
+    //同一时刻只有一个线程清理
+    private final AtomicBoolean evicting = new AtomicBoolean();
+
+    public FileMetaCache(File dir, int maxEntries) {
+        this.root = dir.toPath().toAbsolutePath().normalize();
+        this.maxEntries = maxEntries;
+    }
+
+    //文件名规范化为保存目录下的绝对路径，作为缓存的键，文件不在保存目录内时返回null
+    public String key(String name) {
+        if (name == null) return null;
+        try {
+            Path path = root.resolve(name).normalize();
+            return path.startsWith(root) && !path.equals(root) ? path.toString() : null;
+        } catch (InvalidPathException e) {
+            return null;
+        }
+    }
+
+    //获取文件元数据，文件不存在时返回null
+    public FileMeta get(String name) {
+        String key = key(name);
+        if (key == null) return null;
+        FileMeta meta = metas.get(key);
+        if (meta != null) return meta;
+
+        //在computeIfAbsent中读取磁盘属性，与invalidate()的remove()互斥：
+        //读取发生在remove()之前时会被清除，发生在之后时读到的已是覆盖后的文件，不会缓存过期的元数据
+        meta = metas.computeIfAbsent(key, k -> {
+            File file = new File(k);
+            if (!file.isFile()) return null;
+            return new FileMeta(file, file.length(), file.lastModified());
+        });
+        if (metas.size() > maxEntries) evict();
+        return meta;
+    }
+
+    //文件被覆盖或删除后清除缓存
+    public void invalidate(String name) {
+        String key = key(name);
+        if (key != null) metas.remove(key);
+    }
+
+    public void clear() {
+        metas.clear();
+    }
+
+    //清理到上限的90%
+    private void evict() {
+        if (!evicting.compareAndSet(false, true)) return;
+        try {
+            Iterator<String> it = metas.keySet().iterator();
+            while (metas.size() > maxEntries * 9 / 10 && it.hasNext()) {
+                it.next();
+                it.remove();
+            }
+        } finally {
+            evicting.set(false);
+        }
+    }
+
+    //文件元数据，创建后不再改变
+    public static class FileMeta {
+        private final File file;
+        private final long length;
+        private final long lastModified;
+        private final String eTag;
+
+        FileMeta(File file, long length, long lastModified) {
+            this.file = file;
+            this.length = length;
+            this.lastModified = lastModified;
+            //强ETag由文件长度和修改时间生成，文件被覆盖后ETag随之改变
+            this.eTag = "\"" + Long.toHexString(length) + "-" + Long.toHexString(lastModified) + "\"";
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        public String getETag() {
+            return eTag;
+        }
+
+        //压缩后的内容与原文件是不同的表示，需要不同的ETag
+        public String getETag(String encoding) {
+            if (encoding == null) return eTag;
+            return eTag.substring(0, eTag.length() - 1) + "-" + encoding + "\"";
+        }
+
+        //If-None-Match中是否有与当前文件匹配的ETag，按弱比较忽略W/前缀
+        public boolean matchesNoneMatch(String ifNoneMatch) {
+            return matchesNoneMatch(ifNoneMatch, eTag);
+        }
+
+        public static boolean matchesNoneMatch(String ifNoneMatch, String eTag) {
+            for (String tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                if (tag.equals("*")) return true;
+                if (tag.startsWith("W/")) tag = tag.substring(2);
+                if (tag.equals(eTag)) return true;
+            }
+            return false;
+        }
+
+        //文件在ifModifiedSince之后没有修改过，HTTP日期精确到秒
+        public boolean notModifiedSince(long ifModifiedSince) {
+            return ifModifiedSince != -1 && lastModified / 1000 <= ifModifiedSince / 1000;
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/**
+ * 本类为UpDownServletDemo提供流式文件接收，上传数据只写一次磁盘：
+ * 1）数据边读边通过FileChannel写入与目标文件同一磁盘上的临时文件，不在内存或临时目录中再保存一份
+ * 2）从输入流多次读到的小块数据先攒到池化的1M堆外缓冲区中，满了才调用一次FileChannel.write，减少系统调用
+ * 3）已知文件长度时先把临时文件扩展到最终长度，写完后长度不符则视为上传不完整
+ * 4）可以在复制的同时增量计算CRC32/CRC32C校验和，与客户端提供的值比较，不需要再读一遍文件
+ * 5）全部写完并校验通过后用原子重命名(ATOMIC_MOVE)替换目标文件，下载方要么看到旧文件，要么看到完整的新文件
+ * 6）写入或校验失败时删除临时文件，不会留下不完整的目标文件
+ * <p>
+ * <br/>Copyright (C), 2017-2018, Steve Chang
+ * <br/>This program is protected by copyright laws.
+ * <br/>Program Name:FileReceiver
+ * <br/>Date:May，2018
+ *
+ * @author xottys@163.com
+ * @version 1.0
+ */
+package org.xottys.server.http;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+public class FileReceiver {
+    //从输入流读取数据的堆内缓冲区大小
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    //写文件的堆外缓冲区大小
+    private static final int WRITE_BUFFER_SIZE = 1024 * 1024;
+
+    //临时文件目录，必须与目标文件在同一文件系统上才能原子重命名
+    private final File tempDir;
+    private final BufferPool readPool;
+    private final BufferPool writePool;
+
+    public FileReceiver(File tempDir) {
+        this(tempDir, new BufferPool(READ_BUFFER_SIZE, 64, false), new BufferPool(WRITE_BUFFER_SIZE, 16, true));
+    }
+
+    //readPool要从InputStream读入byte[]，只能使用堆内缓冲池
+    public FileReceiver(File tempDir, BufferPool readPool, BufferPool writePool) {
+        if (readPool.isDirect())
+            throw new IllegalArgumentException("FileReceiver需要堆内读缓冲池");
+        this.tempDir = tempDir;
+        this.readPool = readPool;
+        this.writePool = writePool;
+    }
+
+    //把输入流写入target，返回写入的字节数
+    public long receive(InputStream in, File target) throws IOException {
+        return receive(in, target, -1, null, 0);
+    }
+
+    /**
+     * 把输入流写入target，返回写入的字节数
+     * @param expectedLength 已知的文件长度，用于预分配和完整性检查，未知时为-1
+     * @param checksum 复制时增量计算的校验和，为null时不校验
+     * @param expectedChecksum 客户端提供的校验和
+     * @throws IOException 读写失败、长度不符或校验和不一致
+     */
+    public long receive(InputStream in, File target, long expectedLength, Checksum checksum,
+                        long expectedChecksum) throws IOException {
+        Path temp = Files.createTempFile(tempDir.toPath(), target.getName() + ".", ".part");
+        boolean done = false;
+        try {
+            long written;
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                if (expectedLength > 0) preallocate(channel, expectedLength);
+                written = copy(in, channel, 0, Long.MAX_VALUE, checksum);
+                if (expectedLength >= 0 && written != expectedLength)
+                    throw new IOException("文件长度不符：" + written + "/" + expectedLength);
+                if (checksum != null && checksum.getValue() != expectedChecksum)
+                    throw new IOException("校验和不一致：" + Long.toHexString(checksum.getValue())
+                            + "/" + Long.toHexString(expectedChecksum));
+            }
+            commit(temp, target.toPath());
+            done = true;
+            return written;
+        } finally {
+            if (!done) Files.deleteIfExists(temp);
+        }
+    }
+
+    //把输入流中正好length个字节写到已打开的channel的position位置，用于分块上传
+    public void receiveAt(InputStream in, FileChannel channel, long position, long length) throws IOException {
+        long written = copy(in, channel, position, length, null);
+        if (written != length || in.read() != -1)
+            throw new IOException("块长度不符：应为" + length);
+    }
+
+    //按名称创建校验和，支持CRC32和CRC32C(需要Java 9以上)，不支持时返回null
+    public static Checksum newChecksum(String algorithm) {
+        if ("CRC32".equalsIgnoreCase(algorithm)) return new CRC32();
+        if ("CRC32C".equalsIgnoreCase(algorithm)) {
+            try {
+                return (Checksum) Class.forName("java.util.zip.CRC32C").newInstance();
+            } catch (ReflectiveOperationException e) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    //先把文件扩展到最终长度，Java没有fallocate，这里在最后一个字节处写0
+    private void preallocate(FileChannel channel, long length) throws IOException {
+        ByteBuffer last = ByteBuffer.allocate(1);
+        channel.write(last, length - 1);
+    }
+
+    //边读边写，最多读取limit个字节，从channel的position位置开始写入
+    //输入流每次读到的数据先攒到堆外缓冲区中，满了再写入channel
+    private long copy(InputStream in, FileChannel channel, long position, long limit, Checksum checksum)
+            throws IOException {
+        ByteBuffer readBuffer = readPool.acquire();
+        ByteBuffer writeBuffer = writePool.acquire();
+        long written = 0;
+        try {
+            byte[] array = readBuffer.array();
+            int n;
+            while (written + writeBuffer.position() < limit
+                    && (n = in.read(array, 0, (int) Math.min(Math.min(array.length, writeBuffer.remaining()),
+                    limit - written - writeBuffer.position()))) >= 0) {
+                if (checksum != null) checksum.update(array, 0, n);
+                writeBuffer.put(array, 0, n);
+                if (!writeBuffer.hasRemaining()) written += flush(writeBuffer, channel, position + written);
+            }
+            written += flush(writeBuffer, channel, position + written);
+        } finally {
+            readPool.release(readBuffer);
+            writePool.release(writeBuffer);
+        }
+        return written;
+    }
+
+    //把缓冲区中的数据按位置写入channel，返回写入的字节数
+    private int flush(ByteBuffer buffer, FileChannel channel, long position) throws IOException {
+        buffer.flip();
+        int count = buffer.remaining();
+        while (buffer.hasRemaining())
+            channel.write(buffer, position + count - buffer.remaining());
+        buffer.clear();
+        return count;
+    }
+
+    //用临时文件原子替换目标文件，文件系统不支持原子重命名时退化为普通替换
+    static void commit(Path temp, Path target) throws IOException {
+        try {
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/**
+ * 本类为UpDownServletDemo提供流式文件下载，每次下载占用的堆内存是固定的，与文件大小无关：
+ * 1）容器支持sendfile时(Tomcat的NIO/APR连接器会设置org.apache.tomcat.sendfile.support属性)，
+ * 只设置文件名和起止位置，由容器直接用sendfile把文件发到socket，数据不经过JVM
+ * 2）容器的输出流本身是WritableByteChannel时，用FileChannel.transferTo零拷贝发送
+ * 3）其它情况用BufferPool中固定大小的缓冲区循环读写FileChannel和ServletOutputStream
+ * 4）所有方式都从指定的position开始发送count个字节，不需要读取前面的内容
+ * <p>
+ * <br/>Copyright (C), 2017-2018, Steve Chang
+ * <br/>This program is protected by copyright laws.
+ * <br/>Program Name:FileTransfer
+ * <br/>Date:May，2018
+ *
+ * @author xottys@163.com
+ * @version 1.0
+ */
+package org.xottys.server.http;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+
+public class FileTransfer {
+    //Tomcat sendfile相关的request属性
+    private static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+
+    //每次下载使用的缓冲区大小
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final BufferPool bufferPool;
+
+    public FileTransfer() {
+        this(new BufferPool(BUFFER_SIZE, 64, false));
+    }
+
+    //缓冲区要与ServletOutputStream读写byte[]，只能使用堆内缓冲池
+    public FileTransfer(BufferPool bufferPool) {
+        if (bufferPool.isDirect())
+            throw new IllegalArgumentException("FileTransfer需要堆内缓冲池");
+        this.bufferPool = bufferPool;
+    }
+
+    //容器是否可以接管本次发送，调用方需要先设置好Content-Length等响应头，并且之后不能再写response
+    public boolean canSendfile(HttpServletRequest request) {
+        return Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT));
+    }
+
+    //把文件的[position,position+count)部分发送给客户端，返回已发送的字节数
+    public long send(HttpServletRequest request, HttpServletResponse response, File file,
+                     long position, long count) throws IOException {
+        if (count <= 0) return 0;
+
+        //交给容器用sendfile发送，end不包含在内
+        if (canSendfile(request)) {
+            request.setAttribute(SENDFILE_FILENAME, file.getCanonicalPath());
+            request.setAttribute(SENDFILE_START, position);
+            request.setAttribute(SENDFILE_END, position + count);
+            return count;
+        }
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return send(channel, response.getOutputStream(), position, count);
+        }
+    }
+
+    //从已打开的FileChannel发送一段数据，多段(multipart/byteranges)发送时可以共用一个channel
+    public long send(FileChannel channel, ServletOutputStream out, long position, long count)
+            throws IOException {
+        long sent = 0;
+        //容器输出流本身就是Channel时直接transferTo
+        if (out instanceof WritableByteChannel) {
+            WritableByteChannel target = (WritableByteChannel) out;
+            while (sent < count) {
+                long n = channel.transferTo(position + sent, count - sent, target);
+                if (n <= 0) break;
+                sent += n;
+            }
+            return sent;
+        }
+
+        //用池中的缓冲区边读边写，按位置读取，不移动channel的当前位置
+        ByteBuffer buffer = bufferPool.acquire();
+        try {
+            byte[] array = buffer.array();
+            while (sent < count) {
+                buffer.clear();
+                if (count - sent < buffer.capacity()) buffer.limit((int) (count - sent));
+                int n = channel.read(buffer, position + sent);
+                if (n < 0) break;
+                out.write(array, 0, n);
+                sent += n;
+            }
+        } finally {
+            bufferPool.release(buffer);
+        }
+        return sent;
+    }
+
+    //从内存中的文件内容发送一段数据，content不会被修改
+    public long send(ByteBuffer content, ServletOutputStream out, long position, long count)
+            throws IOException {
+        ByteBuffer src = content.duplicate();
+        src.limit((int) (position + count));
+        src.position((int) position);
+        if (out instanceof WritableByteChannel) {
+            WritableByteChannel target = (WritableByteChannel) out;
+            while (src.hasRemaining()) {
+                if (target.write(src) <= 0) break;
+            }
+            return count - src.remaining();
+        }
+
+        //堆外内容需要经过堆内缓冲区才能写到ServletOutputStream
+        ByteBuffer buffer = bufferPool.acquire();
+        try {
+            byte[] array = buffer.array();
+            while (src.hasRemaining()) {
+                int n = Math.min(array.length, src.remaining());
+                src.get(array, 0, n);
+                out.write(array, 0, n);
+            }
+        } finally {
+            bufferPool.release(buffer);
+        }
+        return count;
+    }
+}
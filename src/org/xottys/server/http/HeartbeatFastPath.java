@@ -0,0 +1,101 @@
+/**
+ * 本类是Tcp、Udp和Udp组播服务器共用的心跳包快速通道：
+ * 1）直接在收到的字节上查找心跳标记"XAH"，与原来的String.contains("XAH")判断相同，但不需要解码为String
+ * 2）心跳包由各服务器把收到的字节原样回送，不解码、不编码、不分配对象，也不打印日志
+ * 3）每种服务器一个实例，用LongAdder统计心跳包和其他消息的个数及字节数，多个线程同时更新也没有竞争；
+ * 各服务器在init()中把本实例保存到ServletContext属性中(如TcpHeartbeatStats)，已启动后再次请求时也在响应中返回统计
+ * <p>
+ * <br/>Copyright (C), 2017-2018, Steve Chang
+ * <br/>This program is protected by copyright laws.
+ * <br/>Program Name:HeartbeatFastPath
+ * <br/>Date:May，2018
+ *
+ * @author xottys@163.com
+ * @version 1.0
+ */
+package org.xottys.server.http;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.LongAdder;
+
+public class HeartbeatFastPath {
+    //心跳标记，ASCII字符在UTF-8和GBK等常用编码中的字节相同
+    private static final byte[] MARKER = {'X', 'A', 'H'};
+
+    public static final HeartbeatFastPath TCP = new HeartbeatFastPath("Tcp");
+    public static final HeartbeatFastPath UDP = new HeartbeatFastPath("Udp");
+    public static final HeartbeatFastPath MULTICAST = new HeartbeatFastPath("Udp Multicast");
+
+    private final String name;
+    private final LongAdder heartbeats = new LongAdder();
+    private final LongAdder heartbeatBytes = new LongAdder();
+    private final LongAdder messages = new LongAdder();
+    private final LongAdder messageBytes = new LongAdder();
+
+    private HeartbeatFastPath(String name) {
+        this.name = name;
+    }
+
+    //data[offset,offset+length)中是否含有心跳标记
+    public static boolean isHeartbeat(byte[] data, int offset, int length) {
+        int last = offset + length - MARKER.length;
+        for (int i = offset; i <= last; i++) {
+            if (data[i] == MARKER[0] && data[i + 1] == MARKER[1] && data[i + 2] == MARKER[2]) return true;
+        }
+        return false;
+    }
+
+    //用绝对位置读取，不改变buffer的position和limit
+    public static boolean isHeartbeat(ByteBuffer data, int offset, int length) {
+        int last = offset + length - MARKER.length;
+        for (int i = offset; i <= last; i++) {
+            if (data.get(i) == MARKER[0] && data.get(i + 1) == MARKER[1] && data.get(i + 2) == MARKER[2])
+                return true;
+        }
+        return false;
+    }
+
+    //判断并计数，是心跳包时返回true
+    public boolean check(byte[] data, int offset, int length) {
+        return count(isHeartbeat(data, offset, length), length);
+    }
+
+    public boolean check(ByteBuffer data, int offset, int length) {
+        return count(isHeartbeat(data, offset, length), length);
+    }
+
+    private boolean count(boolean heartbeat, int length) {
+        if (heartbeat) {
+            heartbeats.increment();
+            heartbeatBytes.add(length);
+        } else {
+            messages.increment();
+            messageBytes.add(length);
+        }
+        return heartbeat;
+    }
+
+    public long getHeartbeats() {
+        return heartbeats.sum();
+    }
+
+    public long getMessages() {
+        return messages.sum();
+    }
+
+    public long getHeartbeatBytes() {
+        return heartbeatBytes.sum();
+    }
+
+    public long getMessageBytes() {
+        return messageBytes.sum();
+    }
+
+    //快速通道处理的消息所占比例
+    @Override
+    public String toString() {
+        long h = heartbeats.sum(), m = messages.sum();
+        return name + " heartbeat fast path: heartbeats=" + h + "(" + heartbeatBytes.sum() + " bytes), messages="
+                + m + "(" + messageBytes.sum() + " bytes), absorbed=" + (h + m == 0 ? 0 : h * 100 / (h + m)) + "%";
+    }
+}
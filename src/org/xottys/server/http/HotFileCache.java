@@ -0,0 +1,171 @@
+/**
+ * 本类缓存下载最频繁的小文件内容，供UpDownServletDemo直接从内存发送，不再每次读磁盘：
+ * 1）文件内容保存在堆外的只读DirectByteBuffer中，不占用Java堆，也不增加GC负担
+ * 2）按缓存总字节数限制容量，超出时按LRU淘汰最久未访问的文件；超过maxEntryBytes的大文件不缓存
+ * 3）缓存项带有加载时文件的ETag，文件被覆盖后ETag改变，旧内容不会被发送；上传时也会调用invalidate()直接清除。
+ * 键与FileMetaCache相同，为规范化后的文件路径
+ * 4）提供命中、未命中、淘汰次数等计数，用于评估和调整缓存大小
+ * 5）同一文件(同一ETag)同时未命中时只由第一个请求读文件，其他请求等待其结果，不会重复分配堆外缓冲区
+ * <p>
+ * <br/>Copyright (C), 2017-2018, Steve Chang
+ * <br/>This program is protected by copyright laws.
+ * <br/>Program Name:HotFileCache
+ * <br/>Date:May，2018
+ *
+ * @author xottys@163.com
+ * @version 1.0
+ */
+package org.xottys.server.http;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class HotFileCache {
+    private final long maxBytes;
+    private final long maxEntryBytes;
+
+    //按访问顺序排列的LinkedHashMap，最前面的是最久未访问的文件
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long currentBytes;
+    //正在加载的文件，键为路径+ETag，加载失败时结果为null
+    private final ConcurrentMap<String, CompletableFuture<ByteBuffer>> loading = new ConcurrentHashMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public HotFileCache(long maxBytes, long maxEntryBytes) {
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = Math.min(maxEntryBytes, maxBytes);
+    }
+
+    //获取文件内容，返回的是只读副本，可以被多个线程同时读取；文件过大或读取失败时返回null
+    public ByteBuffer get(FileMetaCache.FileMeta meta) {
+        String name = meta.getFile().getPath();
+        synchronized (entries) {
+            Entry entry = entries.get(name);
+            if (entry != null && entry.eTag.equals(meta.getETag())) {
+                hits.incrementAndGet();
+                return entry.content.duplicate();
+            }
+        }
+        misses.incrementAndGet();
+        if (meta.getLength() > maxEntryBytes) return null;
+
+        //在锁外读文件，避免一个文件的加载阻塞其它文件的命中；同一文件正在加载时等待其结果
+        String loadKey = name + "|" + meta.getETag();
+        CompletableFuture<ByteBuffer> future = new CompletableFuture<>();
+        CompletableFuture<ByteBuffer> prev = loading.putIfAbsent(loadKey, future);
+        if (prev != null) {
+            ByteBuffer content = prev.join();
+            return content == null ? null : content.duplicate();
+        }
+        ByteBuffer content = null;
+        try {
+            content = load(meta);
+            if (content != null) put(name, new Entry(meta.getETag(), content));
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            loading.remove(loadKey, future);
+            future.complete(content);
+        }
+        return content == null ? null : content.duplicate();
+    }
+
+    //文件被覆盖或删除后清除缓存，name为FileMetaCache.key()返回的路径
+    public void invalidate(String name) {
+        if (name == null) return;
+        synchronized (entries) {
+            Entry entry = entries.remove(name);
+            if (entry != null) currentBytes -= entry.content.capacity();
+        }
+    }
+
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+            currentBytes = 0;
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public long getCurrentBytes() {
+        synchronized (entries) {
+            return currentBytes;
+        }
+    }
+
+    public int getEntryCount() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "hits=" + getHits() + ",misses=" + getMisses() + ",evictions=" + getEvictions()
+                + ",entries=" + getEntryCount() + ",bytes=" + getCurrentBytes() + "/" + maxBytes;
+    }
+
+    private void put(String name, Entry entry) {
+        synchronized (entries) {
+            Entry prev = entries.put(name, entry);
+            if (prev != null) currentBytes -= prev.content.capacity();
+            currentBytes += entry.content.capacity();
+
+            //超出容量时从最久未访问的文件开始淘汰
+            Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+            while (currentBytes > maxBytes && it.hasNext()) {
+                Map.Entry<String, Entry> eldest = it.next();
+                if (eldest.getValue() == entry) continue;
+                currentBytes -= eldest.getValue().content.capacity();
+                it.remove();
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    //把整个文件读入堆外缓冲区，读到的长度与元数据不一致(文件正在被改写)时返回null
+    private ByteBuffer load(FileMetaCache.FileMeta meta) throws IOException {
+        ByteBuffer content = ByteBuffer.allocateDirect((int) meta.getLength());
+        try (FileChannel channel = FileChannel.open(meta.getFile().toPath(), StandardOpenOption.READ)) {
+            while (content.hasRemaining()) {
+                if (channel.read(content) < 0) break;
+            }
+        }
+        content.flip();
+        if (content.limit() != meta.getLength()) return null;
+        return content.asReadOnlyBuffer();
+    }
+
+    private static class Entry {
+        private final String eTag;
+        private final ByteBuffer content;
+
+        Entry(String eTag, ByteBuffer content) {
+            this.eTag = eTag;
+            this.content = content;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+/**
+ * 本类解析HTTP的Range请求头，供UpDownServletDemo实现断点续传：
+ * 1）支持"bytes=0-499"、"bytes=500-"、"bytes=-500"以及用逗号分隔的多段请求
+ * 2）重叠或相邻的多段会合并，段数超过MAX_RANGES时只返回整个文件，防止大量小段拖垮服务器
+ * 3）parse()返回null表示忽略Range头返回整个文件(200)，返回空列表表示请求的范围都无法满足(416)
+ * 4）ifRangeMatches()判断If-Range中的ETag或日期是否与当前文件一致，不一致时应返回整个文件
+ * <p>
+ * <br/>Copyright (C), 2017-2018, Steve Chang
+ * <br/>This program is protected by copyright laws.
+ * <br/>Program Name:HttpRange
+ * <br/>Date:May，2018
+ *
+ * @author xottys@163.com
+ * @version 1.0
+ */
+package org.xottys.server.http;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class HttpRange implements Comparable<HttpRange> {
+    //一次请求最多允许的分段数
+    private static final int MAX_RANGES = 16;
+
+    //起止位置，都包含在内
+    private final long start;
+    private final long end;
+
+    public HttpRange(long start, long end) {
+        this.start = start;
+        this.end = end;
+    }
+
+    public long getStart() {
+        return start;
+    }
+
+    public long getEnd() {
+        return end;
+    }
+
+    public long getLength() {
+        return end - start + 1;
+    }
+
+    //Content-Range头的内容，如：bytes 0-499/1234
+    public String toContentRange(long total) {
+        return "bytes " + start + "-" + end + "/" + total;
+    }
+
+    @Override
+    public int compareTo(HttpRange o) {
+        return Long.compare(start, o.start);
+    }
+
+    //按文件长度解析Range头
+    public static List<HttpRange> parse(String header, long total) {
+        if (header == null || !header.startsWith("bytes=")) return null;
+
+        List<HttpRange> ranges = new ArrayList<>();
+        for (String spec : header.substring(6).split(",")) {
+            spec = spec.trim();
+            int dash = spec.indexOf('-');
+            if (dash < 0) return null;
+            long start, end;
+            try {
+                if (dash == 0) {
+                    //后缀形式：最后N个字节
+                    long suffix = Long.parseLong(spec.substring(1));
+                    if (suffix <= 0) continue;
+                    start = Math.max(0, total - suffix);
+                    end = total - 1;
+                } else {
+                    start = Long.parseLong(spec.substring(0, dash));
+                    if (dash == spec.length() - 1)
+                        end = total - 1;
+                    else {
+                        end = Long.parseLong(spec.substring(dash + 1));
+                        //语法错误的段使整个Range头无效
+                        if (end < start) return null;
+                        end = Math.min(end, total - 1);
+                    }
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            //起点超出文件长度的段无法满足
+            if (start < total && start <= end) ranges.add(new HttpRange(start, end));
+        }
+        if (ranges.size() > MAX_RANGES) return null;
+
+        //合并重叠或相邻的段
+        Collections.sort(ranges);
+        List<HttpRange> merged = new ArrayList<>(ranges.size());
+        for (HttpRange range : ranges) {
+            int last = merged.size() - 1;
+            if (last >= 0 && range.start <= merged.get(last).end + 1) {
+                HttpRange prev = merged.get(last);
+                merged.set(last, new HttpRange(prev.start, Math.max(prev.end, range.end)));
+            } else
+                merged.add(range);
+        }
+        return merged;
+    }
+
+    //If-Range可以是强ETag或HTTP日期，只有与当前文件完全一致时才按Range返回部分内容
+    public static boolean ifRangeMatches(String ifRange, String eTag, long lastModified, long ifRangeDate) {
+        if (ifRange == null) return true;
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("\"")) return ifRange.equals(eTag);
+        if (ifRange.startsWith("W/")) return false;
+        //HTTP日期精确到秒
+        return ifRangeDate != -1 && lastModified / 1000 == ifRangeDate / 1000;
+    }
+}
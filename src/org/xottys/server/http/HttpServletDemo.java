@@ -51,22 +51,15 @@ import org.w3c.dom.NodeList;
 @WebListener
 public class HttpServletDemo extends HttpServlet implements HttpSessionAttributeListener,
         HttpSessionListener {
-    private ArrayList<HashMap> accounts;        //存储所有账户
-    private HashMap<String, String> account;    //当前账户
-    private ArrayList<String> users;//所有账户中的用户名
+    private AccountStore accounts;              //存储所有账户，以用户名为Key
     static private String sessionID="";
     private HttpServletResponse httpServletResponse;
     //给账户赋初值：admin/admin，可用此账户成功登录
     @Override
     public void init() throws ServletException {
         super.init();
-        accounts = new ArrayList<>();
-        account = new HashMap<>();
-        account.put("user", "admin");
-        account.put("password", "admin");
-        accounts.add(account);
-        users = new ArrayList<>();
-        users.add("admin");
+        accounts = new AccountStore();
+        accounts.add("admin", "admin");
         System.out.println("HttpServlet启动");
     }
 
@@ -74,7 +67,6 @@ public class HttpServletDemo extends HttpServlet implements HttpSessionAttribute
     @Override
     public void doGet(HttpServletRequest request, HttpServletResponse response)
             throws ServletException, IOException {
-        account = new HashMap<>();
         //获取客户端传来的Cookie
         Cookie cookies[] = request.getCookies();
         String cookieUser = "", cookiePassword = "", cookieLoginTime = "";
@@ -131,26 +123,18 @@ public class HttpServletDemo extends HttpServlet implements HttpSessionAttribute
     @Override
     public void doPost(HttpServletRequest request, HttpServletResponse response)
             throws ServletException, IOException {
-        account = new HashMap<>();
         //获取application/x-www-form-urlencoded格式body中的参数
         String user = request.getParameter("user");
         String password = request.getParameter("password");
 
         if (user != null && password != null) {
-            if (users.contains(user))
+            //添加新账户到accounts中，同名检查和添加是一个原子操作
+            if (!accounts.add(user, password))
                 outputMsg("已有同名账户", "application/x-www-form-urlencoded", response);
             else {
-                //添加新账户到accounts中
-                account.put("user", user);
-                account.put("password", password);
-                accounts.add(account);
-                //同时添加新用户名到users中
-                users.add(user);
-
                 //用text/plain格式返回结果
                 outputMsg("账户添加成功", "application/x-www-form-urlencoded", response);
-
-      }
+            }
         } else
             outputMsg("参数错误：user/password为null", "application/x-www-form-urlencoded", response);
     }
@@ -159,7 +143,6 @@ public class HttpServletDemo extends HttpServlet implements HttpSessionAttribute
     @Override
     public void doPut(HttpServletRequest request, HttpServletResponse response)
             throws ServletException, IOException {
-        account = new HashMap<>();
         String line, jsonStr = "";
         StringBuilder param = new StringBuilder();
 
@@ -192,14 +175,10 @@ public class HttpServletDemo extends HttpServlet implements HttpSessionAttribute
             else
                 password = jsonObj.getString("password");
 
-            int idx = users.indexOf(user);
-            if (idx == -1)
+            //修改accounts中user对应的密码
+            if (!accounts.updatePassword(user, password))
                 jsonStr = "{'code':1,'message':'未找到账户，密码修改失败'}";
             else {
-                //修改accounts中user对应的密码
-                account.put("user", user);
-                account.put("password", password);
-                accounts.set(idx, account);
                 //将返回结果封装成json字符串
                 jsonStr = "{'code':0,'message':'密码修改成功'}";
 
@@ -282,7 +261,6 @@ public class HttpServletDemo extends HttpServlet implements HttpSessionAttribute
     @Override
     public void destroy() {
         accounts.clear();
-        users.clear();
         System.out.print("HttpServlet销毁");
         super.destroy();
     }
@@ -291,10 +269,7 @@ public class HttpServletDemo extends HttpServlet implements HttpSessionAttribute
     private String validateAccount(String user, String password) {
         String msg;
         if (user != null && password != null) {
-            account.put("user", user);
-            account.put("password", password);
-            int idx = accounts.indexOf(account);
-            if (idx != -1)
+            if (accounts.validate(user, password))
                 msg = "登录成功";
             else
                 msg = "账户或密码错误";
@@ -308,15 +283,7 @@ public class HttpServletDemo extends HttpServlet implements HttpSessionAttribute
 
     //删除一个已存在和账户：用户名/密码
     private boolean deleteAccount(HashMap account) {
-        boolean deleteResult;
-        if (accounts.contains(account)) {
-            deleteResult = accounts.remove(account);
-            if (deleteResult)
-                deleteResult = users.remove(account.get("user"));
-        } else
-            deleteResult = false;
-
-        return deleteResult;
+        return accounts.remove((String) account.get("user"), (String) account.get("password"));
     }
 
     //用DOM方式解析xml
@@ -0,0 +1,208 @@
+/**
+ * 本类是所有Tcp连接共用的空闲检测器(hashed timing wheel)，代替每个连接一个线程的sendUrgentData()+sleep()：
+ * 1）时间轮有wheelSize个槽，一个后台线程每tickMillis前进一格，只处理当前槽中的连接，每格的开销与总连接数无关
+ * 2）每个连接注册后得到一个Timeout，收到或发出数据时调用onRead()/onWrite()，只记录时间戳，不移动时间轮中的位置
+ * 3）到期时再根据时间戳判断是否真的空闲：没有空闲就按最新时间戳重新放入时间轮，否则回调IdleListener
+ * 4）支持读空闲、写空闲和读写都空闲三种超时，超时值为0表示不检测该项
+ * <p>
+ * <br/>Copyright (C), 2017-2018, Steve Chang
+ * <br/>This program is protected by copyright laws.
+ * <br/>Program Name:IdleTimeoutWheel
+ * <br/>Date:May，2018
+ *
+ * @author xottys@163.com
+ * @version 1.0
+ */
+package org.xottys.server.http;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+public class IdleTimeoutWheel {
+
+    public enum IdleState {
+        //超过读超时没有收到数据，通常说明客户端已断开或不再发送心跳包
+        READER_IDLE,
+        //超过写超时没有发出数据，可以发送心跳包保持连接
+        WRITER_IDLE,
+        //超过超时时间既没有收到也没有发出数据
+        ALL_IDLE
+    }
+
+    //空闲时的回调，在时间轮线程中调用，不能执行耗时操作
+    public interface IdleListener {
+        void onIdle(Timeout timeout, IdleState state);
+    }
+
+    private final long tickMillis;
+    private final ArrayDeque<Timeout>[] wheel;
+    private final int mask;
+    //其他线程新注册的连接，由时间轮线程放入时间轮
+    private final Queue<Timeout> registrations = new ConcurrentLinkedQueue<>();
+    private final long startTime;
+    private final Thread worker;
+    private volatile boolean running = true;
+    //当前时间，每格更新一次，供onRead()/onWrite()使用，避免每次读写都取系统时间
+    private volatile long now;
+    private long tick;
+
+    //wheelSize会向上取整为2的幂
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public IdleTimeoutWheel(long tickMillis, int wheelSize) {
+        this.tickMillis = tickMillis;
+        int size = Integer.highestOneBit(Math.max(wheelSize, 2) - 1) << 1;
+        this.wheel = new ArrayDeque[size];
+        for (int i = 0; i < size; i++) wheel[i] = new ArrayDeque<>();
+        this.mask = size - 1;
+        this.startTime = System.currentTimeMillis();
+        this.now = startTime;
+        this.worker = new Thread(this::run, "IdleTimeoutWheel");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    //注册一个连接，各超时值单位为毫秒，为0时不检测
+    public Timeout register(long readIdleMillis, long writeIdleMillis, long allIdleMillis, IdleListener listener) {
+        Timeout timeout = new Timeout(readIdleMillis, writeIdleMillis, allIdleMillis, listener);
+        if (timeout.nextDeadline() != Long.MAX_VALUE) registrations.add(timeout);
+        return timeout;
+    }
+
+    public void stop() {
+        running = false;
+        worker.interrupt();
+    }
+
+    private void run() {
+        while (running) {
+            long deadline = startTime + (tick + 1) * tickMillis;
+            long sleep = deadline - System.currentTimeMillis();
+            if (sleep > 0) {
+                try {
+                    Thread.sleep(sleep);
+                } catch (InterruptedException e) {
+                    continue;
+                }
+            }
+            now = System.currentTimeMillis();
+            tick++;
+            Timeout timeout;
+            while ((timeout = registrations.poll()) != null) schedule(timeout, timeout.nextDeadline());
+            expire(wheel[(int) (tick & mask)]);
+        }
+    }
+
+    //处理当前槽：未到期的轮数减一，到期的检查是否真的空闲
+    private void expire(ArrayDeque<Timeout> bucket) {
+        for (int n = bucket.size(); n > 0; n--) {
+            Timeout timeout = bucket.poll();
+            if (timeout.cancelled) continue;
+            if (timeout.remainingRounds > 0) {
+                timeout.remainingRounds--;
+                bucket.add(timeout);
+                continue;
+            }
+            try {
+                timeout.check(now);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+            if (!timeout.cancelled) schedule(timeout, timeout.nextDeadline());
+        }
+    }
+
+    //放入deadline所在的槽，至少在下一格处理
+    private void schedule(Timeout timeout, long deadline) {
+        if (timeout.cancelled || deadline == Long.MAX_VALUE) return;
+        long ticks = Math.max((deadline - startTime + tickMillis - 1) / tickMillis, tick + 1);
+        timeout.remainingRounds = (ticks - tick - 1) / wheel.length;
+        wheel[(int) (ticks & mask)].add(timeout);
+    }
+
+    //一个连接的空闲检测
+    public class Timeout {
+        private final long readIdleMillis;
+        private final long writeIdleMillis;
+        private final long allIdleMillis;
+        private final IdleListener listener;
+        private volatile long lastRead;
+        private volatile long lastWrite;
+        //各项空闲上次触发的时间，触发后要再空闲一个周期才会再次触发
+        private long readFired;
+        private long writeFired;
+        private long allFired;
+        private long remainingRounds;
+        private volatile boolean cancelled;
+        private Object attachment;
+
+        Timeout(long readIdleMillis, long writeIdleMillis, long allIdleMillis, IdleListener listener) {
+            this.readIdleMillis = readIdleMillis;
+            this.writeIdleMillis = writeIdleMillis;
+            this.allIdleMillis = allIdleMillis;
+            this.listener = listener;
+            this.lastRead = now;
+            this.lastWrite = now;
+        }
+
+        public void onRead() {
+            lastRead = now;
+        }
+
+        public void onWrite() {
+            lastWrite = now;
+        }
+
+        //连接关闭后调用，在下次经过其所在的槽时移除
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        public Object getAttachment() {
+            return attachment;
+        }
+
+        public void setAttachment(Object attachment) {
+            this.attachment = attachment;
+        }
+
+        private long readBase() {
+            return Math.max(lastRead, readFired);
+        }
+
+        private long writeBase() {
+            return Math.max(lastWrite, writeFired);
+        }
+
+        private long allBase() {
+            return Math.max(Math.max(lastRead, lastWrite), allFired);
+        }
+
+        private long nextDeadline() {
+            long deadline = Long.MAX_VALUE;
+            if (readIdleMillis > 0) deadline = Math.min(deadline, readBase() + readIdleMillis);
+            if (writeIdleMillis > 0) deadline = Math.min(deadline, writeBase() + writeIdleMillis);
+            if (allIdleMillis > 0) deadline = Math.min(deadline, allBase() + allIdleMillis);
+            return deadline;
+        }
+
+        private void check(long time) {
+            if (readIdleMillis > 0 && time - readBase() >= readIdleMillis) {
+                readFired = time;
+                listener.onIdle(this, IdleState.READER_IDLE);
+            }
+            if (!cancelled && writeIdleMillis > 0 && time - writeBase() >= writeIdleMillis) {
+                writeFired = time;
+                listener.onIdle(this, IdleState.WRITER_IDLE);
+            }
+            if (!cancelled && allIdleMillis > 0 && time - allBase() >= allIdleMillis) {
+                allFired = time;
+                listener.onIdle(this, IdleState.ALL_IDLE);
+            }
+        }
+    }
+}
@@ -0,0 +1,252 @@
+/**
+ * 本类是组播发送组件，供SocketUdpMulticastDemo向一个或多个组播组高速推送消息：
+ * 1）组播地址和网卡在创建时解析一次，之后发送时直接使用解析好的InetSocketAddress，不再调用InetAddress.getByName()
+ * 2）每个网卡一个DatagramChannel(设置IP_MULTICAST_IF和TTL)，同一条消息只复制一次到池化的堆外缓冲区，再发送到每个组播组
+ * 3）组播组由配置字符串指定，格式为"组播地址:端口[@网卡名],..."，如"239.0.0.1:9001,239.0.0.2:9001@eth1"
+ * 4）coalesce为true时把多条小消息合并成一个不超过MTU的报文，每条消息前加2字节无符号长度，
+ * 报文放满或经过flushInterval毫秒后发出，适合行情类高频推送；为false时每条消息单独发送一个报文
+ * 5）报文不在IP层分片，合并发送时超过mtu-30、单独发送时超过mtu-28字节的消息直接拒绝，抛出IOException
+ * <p>
+ * <br/>Copyright (C), 2017-2018, Steve Chang
+ * <br/>This program is protected by copyright laws.
+ * <br/>Program Name:MulticastPublisher
+ * <br/>Date:May，2018
+ *
+ * @author xottys@163.com
+ * @version 1.0
+ */
+package org.xottys.server.http;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+public class MulticastPublisher implements Closeable {
+    //IPv4首部20字节+UDP首部8字节
+    private static final int HEADER_OVERHEAD = 28;
+    //合并发送时每条消息前的长度字段，2字节无符号数
+    private static final int LENGTH_FIELD = 2;
+    private static final int MAX_LENGTH_FIELD = 0xFFFF;
+
+    private final List<Target> targets;
+    private final List<DatagramChannel> channels = new ArrayList<>();
+    //单个报文的最大长度
+    private final int maxDatagramSize;
+    //单条消息的最大长度，合并发送时还要扣除长度字段，且不超过长度字段能表示的范围
+    private final int maxMessageSize;
+    private final BufferPool bufferPool;
+    private final boolean coalesce;
+    //合并中的报文，只在synchronized(this)中访问
+    private final ByteBuffer pending;
+    private final ScheduledExecutorService flusher;
+
+    private final LongAdder messages = new LongAdder();
+    private final LongAdder datagrams = new LongAdder();
+
+    /**
+     * @param ttl                 组播报文的TTL
+     * @param mtu                 网络的MTU，报文长度不超过mtu-28，以免在IP层分片
+     * @param flushIntervalMillis 合并发送时报文最多等待的时间，必须大于0
+     * @throws IllegalArgumentException mtu过小，或合并发送时flushIntervalMillis不大于0
+     */
+    public MulticastPublisher(List<Target> targets, int ttl, int mtu, boolean coalesce, long flushIntervalMillis)
+            throws IOException {
+        this.targets = targets;
+        this.maxDatagramSize = mtu - HEADER_OVERHEAD;
+        this.maxMessageSize = coalesce ? Math.min(maxDatagramSize - LENGTH_FIELD, MAX_LENGTH_FIELD) : maxDatagramSize;
+        if (maxMessageSize <= 0) throw new IllegalArgumentException("mtu过小：" + mtu);
+        //在打开channel之前检查，避免scheduleWithFixedDelay抛出异常时已打开的channel未关闭
+        if (coalesce && flushIntervalMillis <= 0)
+            throw new IllegalArgumentException("合并发送时flushInterval必须大于0毫秒：" + flushIntervalMillis);
+        this.bufferPool = new BufferPool(maxDatagramSize, 64, true);
+        this.coalesce = coalesce;
+        this.pending = coalesce ? ByteBuffer.allocateDirect(maxDatagramSize) : null;
+
+        //同一网卡的组播组共用一个channel
+        Map<NetworkInterface, DatagramChannel> byInterface = new HashMap<>();
+        try {
+            for (Target target : targets) {
+                DatagramChannel channel = byInterface.get(target.networkInterface);
+                if (channel == null) {
+                    channel = DatagramChannel.open(target.group.getAddress() instanceof Inet6Address
+                            ? StandardProtocolFamily.INET6 : StandardProtocolFamily.INET);
+                    channels.add(channel);
+                    if (target.networkInterface != null)
+                        channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, target.networkInterface);
+                    channel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, ttl);
+                    byInterface.put(target.networkInterface, channel);
+                }
+                target.channel = channel;
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+
+        if (coalesce) {
+            flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "MulticastPublisher");
+                t.setDaemon(true);
+                return t;
+            });
+            flusher.scheduleWithFixedDelay(this::flushQuietly, flushIntervalMillis, flushIntervalMillis,
+                    TimeUnit.MILLISECONDS);
+        } else {
+            flusher = null;
+        }
+    }
+
+    /**
+     * 解析组播组配置，格式为"组播地址:端口[@网卡名],..."
+     * @param defaultInterface 未指定网卡时使用的网卡
+     */
+    public static List<Target> parse(String config, NetworkInterface defaultInterface) throws IOException {
+        List<Target> targets = new ArrayList<>();
+        for (String item : config.split(",")) {
+            item = item.trim();
+            if (item.isEmpty()) continue;
+            NetworkInterface ni = defaultInterface;
+            int at = item.indexOf('@');
+            if (at >= 0) {
+                ni = NetworkInterface.getByName(item.substring(at + 1).trim());
+                if (ni == null) throw new IOException("网卡不存在：" + item);
+                item = item.substring(0, at).trim();
+            }
+            int colon = item.lastIndexOf(':');
+            if (colon < 0) throw new IOException("组播组缺少端口：" + item);
+            InetAddress group = InetAddress.getByName(item.substring(0, colon));
+            if (!group.isMulticastAddress()) throw new IOException("不是组播地址：" + item);
+            targets.add(new Target(new InetSocketAddress(group, Integer.parseInt(item.substring(colon + 1))), ni));
+        }
+        return targets;
+    }
+
+    //发送一条消息到所有组播组，消耗message中的剩余数据；消息超过一个报文能容纳的长度时抛出IOException，不发送
+    public void publish(ByteBuffer message) throws IOException {
+        int length = message.remaining();
+        if (length > maxMessageSize)
+            throw new IOException("消息长度" + length + "超过单个组播报文的上限" + maxMessageSize);
+        messages.increment();
+        if (coalesce) {
+            synchronized (this) {
+                if (pending.remaining() < length + LENGTH_FIELD) flushPending();
+                //length不超过0xFFFF，按无符号数写入，接收方用getShort() & 0xFFFF读取
+                pending.putShort((short) length);
+                pending.put(message);
+            }
+            return;
+        }
+        ByteBuffer buffer = bufferPool.acquire();
+        try {
+            buffer.put(message).flip();
+            sendToAll(buffer);
+        } finally {
+            bufferPool.release(buffer);
+        }
+    }
+
+    public void publish(byte[] message) throws IOException {
+        publish(ByteBuffer.wrap(message));
+    }
+
+    //立即发出合并中的报文
+    public synchronized void flush() throws IOException {
+        if (coalesce) flushPending();
+    }
+
+    @Override
+    public void close() {
+        if (flusher != null) flusher.shutdownNow();
+        flushQuietly();
+        for (DatagramChannel channel : channels) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    public List<Target> getTargets() {
+        return targets;
+    }
+
+    public int getMaxMessageSize() {
+        return maxMessageSize;
+    }
+
+    @Override
+    public String toString() {
+        long d = datagrams.sum();
+        return "Multicast publisher: groups=" + targets.size() + ", messages=" + messages.sum() + ", datagrams=" + d
+                + (coalesce && d > 0 ? ", messages/datagram=" + messages.sum() * targets.size() / d : "");
+    }
+
+    private void flushPending() throws IOException {
+        if (pending.position() == 0) return;
+        pending.flip();
+        try {
+            sendToAll(pending);
+        } finally {
+            pending.clear();
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    //同一缓冲区依次发送到每个组播组
+    private void sendToAll(ByteBuffer buffer) throws IOException {
+        int position = buffer.position();
+        for (Target target : targets) {
+            buffer.position(position);
+            target.channel.send(buffer, target.group);
+            datagrams.increment();
+        }
+    }
+
+    //一个组播组及发送用的网卡
+    public static class Target {
+        private final InetSocketAddress group;
+        private final NetworkInterface networkInterface;
+        private DatagramChannel channel;
+
+        public Target(InetSocketAddress group, NetworkInterface networkInterface) {
+            this.group = group;
+            this.networkInterface = networkInterface;
+        }
+
+        public InetSocketAddress getGroup() {
+            return group;
+        }
+
+        public NetworkInterface getNetworkInterface() {
+            return networkInterface;
+        }
+
+        @Override
+        public String toString() {
+            return group + "@" + (networkInterface == null ? "default" : networkInterface.getName());
+        }
+    }
+}
@@ -8,8 +8,24 @@
  * --socket.getInputStream:接收客户端数据， 收到"end"：关闭服务器socket连接，"stop"：停止服务器socket服务
  * --socket.getOutputStream：发送服务器数据给客户端
  * 3) 在destroy() 中完成socket关闭
- * 4）本服务器端没有用心跳包来检测客户端是否断开，而是用了socket.sendUrgentData(0xFF)
- * 5) 用ServletContext保存服务器是否启动的信息
+ * 4）所有连接共用一个IdleTimeoutWheel检测空闲：客户端定时发送的"XAH"心跳包和其他消息都会刷新读时间，
+ * 超过readIdleTimeout秒(缺省180)没有收到数据或超过allIdleTimeout秒没有收发数据时认为客户端已断开，关闭连接；
+ * 超过writeIdleTimeout秒没有发出数据时向客户端发送"XAH"心跳包。超时值为0表示不检测该项。
+ * 时间轮线程只负责检测，心跳包的写出交给reactor线程(reactor模式)、虚拟线程(virtual模式)或共用的2个心跳线程(thread模式)，
+ * 一个连接写阻塞不影响其他连接的检测
+ * 5）心跳包通过HeartbeatFastPath在原始字节上识别，按原帧内容直接回送，不解码为字符串，也不打印日志；
+ * 心跳包和其他消息的计数保存在ServletContext属性TcpHeartbeatStats中，服务器已启动后再次请求时在响应中返回
+ * 6) 用ServletContext保存服务器是否启动的信息，连接请求队列长度由初始化参数backlog设置，缺省为50
+ * 7）运行模式由初始化参数mode或启动请求的mode参数决定：
+ * --thread：缺省模式，每个客户端连接一个平台线程
+ * --virtual：每个客户端连接一个虚拟线程(需要Java 21以上，否则退回平台线程)，处理代码与thread模式完全相同
+ * --reactor：NIO Selector非阻塞模式，由TcpReactorServer用固定数量的线程处理所有连接
+ * 8）消息分帧方式由初始化参数framing设置，各种模式都由TcpFrameCodec从读缓冲区中解析出完整的消息后再处理：
+ * --line：缺省方式，每条消息以\n结尾
+ * --length：每条消息前加4字节长度
+ * --raw：每次读到的数据作为一条消息，兼容不发送分隔符的旧客户端
+ * 9）响应的写出方式由初始化参数flushPolicy设置：message每条响应写出一次；read(缺省)一次读到的所有消息处理完后合并写出；
+ * wakeup仅用于reactor模式，本次Selector唤醒的所有连接处理完后再写出。初始化参数tcpNoDelay设置是否关闭Nagle算法，缺省为true
  * <p>
  * <br/>Copyright (C), 2017-2018, Steve Chang
  * <br/>This program is protected by copyright laws.
@@ -27,10 +43,17 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.io.BufferedOutputStream;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantLock;
 
 
 @WebServlet(name = "SocketTcp", urlPatterns = ("/tcp"))
@@ -41,14 +64,53 @@ public class SocketTcpDemo extends HttpServlet {
     private boolean flag1, flag2;
     private int socketCounter = 1;
     private ServletContext sc;
+    //reactor模式的服务器
+    private TcpReactorServer reactorServer;
+    //缺省运行模式
+    private String defaultMode;
+    //连接请求队列的长度
+    private int backlog;
+    //消息分帧方式和单条消息的最大长度
+    private TcpFrameCodec frameCodec;
+    private int maxFrameLength;
+    //响应的写出方式和Nagle设置
+    private TcpReactorServer.FlushPolicy flushPolicy;
+    private boolean tcpNoDelay;
+    //所有连接共用的空闲检测，超时单位为毫秒
+    private static final byte[] HEARTBEAT = "XAH".getBytes();
+    private IdleTimeoutWheel idleWheel;
+    private long readIdleTimeout, writeIdleTimeout, allIdleTimeout;
+    //virtual模式下运行连接处理和心跳发送的Executor，thread模式下为null
+    private volatile ExecutorService virtualExecutor;
+    //thread模式下发送心跳包的共用线程
+    private ExecutorService heartbeatExecutor;
 
     //生成ServerSocket对象
     @Override
     public void init() throws ServletException {
         super.init();
+        getServletContext().setAttribute("TcpHeartbeatStats", HeartbeatFastPath.TCP);
+        defaultMode = getInitParameter("mode") == null ? "thread" : getInitParameter("mode");
+        backlog = intParameter("backlog", 50);
+        maxFrameLength = intParameter("maxFrameLength", 1024);
+        frameCodec = TcpFrameCodec.forName(getInitParameter("framing"), maxFrameLength);
+        String policy = getInitParameter("flushPolicy");
+        flushPolicy = policy == null ? TcpReactorServer.FlushPolicy.READ
+                : TcpReactorServer.FlushPolicy.valueOf(policy.toUpperCase());
+        tcpNoDelay = getInitParameter("tcpNoDelay") == null || Boolean.parseBoolean(getInitParameter("tcpNoDelay"));
+        readIdleTimeout = intParameter("readIdleTimeout", 180) * 1000L;
+        writeIdleTimeout = intParameter("writeIdleTimeout", 0) * 1000L;
+        allIdleTimeout = intParameter("allIdleTimeout", 0) * 1000L;
+        //每秒前进一格，512格一圈
+        idleWheel = new IdleTimeoutWheel(1000, 512);
+        heartbeatExecutor = Executors.newFixedThreadPool(2, r -> {
+            Thread t = new Thread(r, "TcpHeartbeat");
+            t.setDaemon(true);
+            return t;
+        });
         try {
-            //连接请求队列的长度为3，系统缺省值通常为50
-            tcpSocket = new ServerSocket(port, 3);
+            //连接请求队列的长度，系统缺省值通常为50
+            tcpSocket = new ServerSocket(port, backlog);
             flag1 = true;
             flag2 = true;
             System.out.println("Tcp服务器启动1");
@@ -73,6 +135,7 @@ public class SocketTcpDemo extends HttpServlet {
             socketCounter=1;
             sc.setAttribute("TcpServerStart", "yes");
             System.out.println("Tcp服务器启动2");
+            String mode = request.getParameter("mode") == null ? defaultMode : request.getParameter("mode");
             //用Servlet启动本socket服务，首先向客户端发送一条信息
             response.setCharacterEncoding("UTF-8");
             try {
@@ -83,9 +146,17 @@ public class SocketTcpDemo extends HttpServlet {
             } catch (IOException e) {
                 e.printStackTrace();
             }
+            //reactor模式：启动后立即返回，不占用当前Servlet线程
+            if ("reactor".equals(mode)) {
+                startReactor();
+                return;
+            }
+
             flag1 = true;
             if (tcpSocket.isClosed())
-                tcpSocket = new ServerSocket(port, 3);
+                tcpSocket = new ServerSocket(port, backlog);
+            //virtual模式下每个连接用一个虚拟线程处理
+            virtualExecutor = "virtual".equals(mode) ? newVirtualThreadExecutor() : null;
 
             //可以接受多个客户端socket连接请求，正常时一直循环等待客户端socket连接
             while (flag1) {
@@ -95,9 +166,11 @@ public class SocketTcpDemo extends HttpServlet {
                 //设置等待客户连接的超时时间，缺省为永久
                 //socket.setSoTimeout(30000);
                 System.out.println("第 " + (socketCounter++) + " 个连接到达,"+"ip:"+socket.getInetAddress().getHostAddress()+",port:"+socket.getPort());
-                Thread t = new Thread(new ThreadServerSocket(socket));
-                t.start();
+                runInConnectionThread(new ThreadServerSocket(socket));
             }
+            //不再接收新连接，已有连接的虚拟线程会继续运行到结束
+            if (virtualExecutor != null) virtualExecutor.shutdown();
+            virtualExecutor = null;
             //退出循环意味着需要关闭ServerSocket
             System.out.println("Tcp Server Closed.....");
             try {
@@ -114,7 +187,7 @@ public class SocketTcpDemo extends HttpServlet {
             response.setCharacterEncoding("UTF-8");
             try {
                 out = response.getWriter();
-                out.print("Tcp Server has been started!");
+                out.print("Tcp Server has been started!\n" + HeartbeatFastPath.TCP);
                 out.flush();
                 out.close();
             } catch (IOException e) {
@@ -123,6 +196,169 @@ public class SocketTcpDemo extends HttpServlet {
         }
     }
 
+    //以reactor模式启动，线程数缺省为CPU核数，每个连接的读写缓冲区缺省各2K
+    private void startReactor() throws IOException {
+        //释放init()中为thread模式绑定的端口
+        if (tcpSocket != null && !tcpSocket.isClosed()) tcpSocket.close();
+        int reactors = intParameter("reactors", Runtime.getRuntime().availableProcessors());
+        reactorServer = new TcpReactorServer(port, backlog, reactors,
+                Math.max(intParameter("readBufferSize", 2048), maxFrameLength + frameCodec.headerLength() + 2),
+                intParameter("writeBufferSize", 2048), new ReactorHandler());
+        reactorServer.setFlushPolicy(flushPolicy);
+        reactorServer.setTcpNoDelay(tcpNoDelay);
+        reactorServer.start();
+        System.out.println("Tcp Reactor Server Start：" + reactors + " reactors");
+    }
+
+    //创建每个任务一个虚拟线程的Executor，项目按Java 8编译，所以通过反射调用；运行环境不支持时返回null
+    private ExecutorService newVirtualThreadExecutor() {
+        try {
+            ExecutorService executor = (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            System.out.println("Tcp Server使用虚拟线程");
+            return executor;
+        } catch (ReflectiveOperationException e) {
+            System.out.println("当前Java版本不支持虚拟线程，使用平台线程");
+            return null;
+        }
+    }
+
+    //发送心跳包：virtual模式用虚拟线程，thread模式用共用的心跳线程，不为每次心跳创建平台线程
+    private void runHeartbeat(Runnable task) {
+        ExecutorService executor = virtualExecutor;
+        if (executor == null || executor.isShutdown()) executor = heartbeatExecutor;
+        executor.execute(task);
+    }
+
+    //与连接处理相同的方式运行任务：virtual模式用虚拟线程，thread模式用新的平台线程
+    private void runInConnectionThread(Runnable task) {
+        ExecutorService executor = virtualExecutor;
+        if (executor != null && !executor.isShutdown()) {
+            executor.execute(task);
+        } else {
+            Thread t = new Thread(task);
+            t.start();
+        }
+    }
+
+    //读取整数型初始化参数
+    private int intParameter(String name, int defaultValue) {
+        String value = getInitParameter(name);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+
+    //reactor模式下的数据处理，与socketDataHandle()的处理逻辑相同，所有方法都在reactor线程中调用
+    class ReactorHandler implements TcpReactorServer.Handler {
+        private final Charset charset = Charset.defaultCharset();
+        //解析结果记录消息在读缓冲区中的位置，多个reactor线程同时调用onRead()，所以每个线程一个
+        private final ThreadLocal<TcpFrameCodec.Frame> frames = ThreadLocal.withInitial(TcpFrameCodec.Frame::new);
+
+        @Override
+        public void onOpen(TcpReactorServer.Connection connection) {
+            Socket socket = connection.getChannel().socket();
+            System.out.println("第 " + (socketCounter++) + " 个连接到达," + "ip:" + socket.getInetAddress().getHostAddress() + ",port:" + socket.getPort());
+            //空闲回调在时间轮线程中，转到连接所属的reactor线程处理
+            connection.setAttachment(idleWheel.register(readIdleTimeout, writeIdleTimeout, allIdleTimeout,
+                    (timeout, state) -> connection.execute(() -> onIdle(connection, state))));
+        }
+
+        private void onIdle(TcpReactorServer.Connection connection, IdleTimeoutWheel.IdleState state) {
+            if (connection.isClosed()) return;
+            if (state == IdleTimeoutWheel.IdleState.WRITER_IDLE) {
+                send(connection, HEARTBEAT);
+                connection.flushNow();
+            } else {
+                System.out.println("客户端空闲超时(" + state + ")，关闭连接：" + connection.getChannel());
+                connection.close();
+            }
+        }
+
+        //一次读到的数据中可能有多条消息，也可能最后一条不完整，不完整的部分留到下次读取时再解析
+        @Override
+        public void onRead(TcpReactorServer.Connection connection, ByteBuffer data) throws IOException {
+            ((IdleTimeoutWheel.Timeout) connection.getAttachment()).onRead();
+            TcpFrameCodec.Frame frame = frames.get();
+            while (!connection.isClosed() && frameCodec.decode(data, frame)) {
+                //心跳包走快速通道，原样回送
+                if (HeartbeatFastPath.TCP.check(data, frame.getOffset(), frame.getLength())) {
+                    echo(connection, frame);
+                    continue;
+                }
+                //从客户端收到的字符串
+                String clientMsg = frame.toString(charset);
+                String serverMsg = replyOf(clientMsg);
+                send(connection, serverMsg);
+
+                System.out.println("客户端发来：" + clientMsg);
+                System.out.println("服务器返回：" + serverMsg);
+
+                //收到客户端发送的"end"则关闭socket
+                if ("end".equals(clientMsg)) {
+                    System.out.println("准备关闭Socket");
+                    send(connection, "准备关闭Socket");
+                    connection.closeAfterFlush();
+                    break;
+                }
+                //收到客户端发送的"stop"则关闭server
+                else if ("stop".equals(clientMsg)) {
+                    System.out.println("准备关闭Tcp ServerSocket");
+                    send(connection, "准备关闭Tcp ServerSocket");
+                    connection.closeAfterFlush();
+                    reactorServer.stop();
+                    System.out.println("Tcp ServerSocket Closed.....");
+                    sc.setAttribute("TcpServerStart", "no");
+                    break;
+                }
+            }
+        }
+
+        @Override
+        public void onClose(TcpReactorServer.Connection connection) {
+            //onOpen()出错时可能还没有注册空闲检测
+            IdleTimeoutWheel.Timeout idle = (IdleTimeoutWheel.Timeout) connection.getAttachment();
+            if (idle != null) idle.cancel();
+            System.out.println("Client Socket Close.....");
+            socketCounter--;
+        }
+
+        //把帧内容直接编码到连接的可重用缓冲区，缓冲区被占用时才复制一份
+        private void echo(TcpReactorServer.Connection connection, TcpFrameCodec.Frame frame) {
+            ((IdleTimeoutWheel.Timeout) connection.getAttachment()).onWrite();
+            int length = frame.getLength();
+            ByteBuffer out = connection.beginWrite(frameCodec.headerLength() + length + frameCodec.trailerLength());
+            if (out == null) {
+                out = ByteBuffer.allocate(frameCodec.headerLength() + length + frameCodec.trailerLength());
+                frameCodec.encode(frame.slice(), out);
+                out.flip();
+                connection.send(out);
+                return;
+            }
+            frameCodec.writeHeader(out, length);
+            frame.copyTo(out);
+            frameCodec.writeTrailer(out);
+            connection.endWrite();
+        }
+
+        //按分帧方式编码后放入连接的写缓冲区
+        private void send(TcpReactorServer.Connection connection, String msg) {
+            send(connection, msg.getBytes(charset));
+        }
+
+        private void send(TcpReactorServer.Connection connection, byte[] payload) {
+            ((IdleTimeoutWheel.Timeout) connection.getAttachment()).onWrite();
+            ByteBuffer out = ByteBuffer.allocate(frameCodec.headerLength() + payload.length + frameCodec.trailerLength());
+            frameCodec.encode(ByteBuffer.wrap(payload), out);
+            out.flip();
+            connection.send(out);
+        }
+    }
+
+    //根据客户端消息生成返回给客户端的消息，心跳包已在快速通道中原样回送
+    private String replyOf(String clientMsg) {
+        //收到非心跳包信息，添加服务器信息后返回
+        return "Tcp Socket Server：" + clientMsg;
+    }
+
     //作为线程来运行，用来接收和返回socket数据
     class ThreadServerSocket implements Runnable {
 
@@ -145,97 +381,146 @@ public class SocketTcpDemo extends HttpServlet {
 
     //处理数据的方法
     private void socketDataHandle(Socket socket) {
-        int BUFFER_SIZE = 1024;
+        Charset charset = Charset.defaultCharset();
+        IdleTimeoutWheel.Timeout idle = null;
         try {
             System.out.println("Tcp Socket数据处理1");
+            socket.setTcpNoDelay(tcpNoDelay);
             //从客户端socket获取输入流
             InputStream in = socket.getInputStream();
-            //从客户端socket获取输出流
-            PrintWriter pw = new PrintWriter(socket.getOutputStream());
+            //从客户端socket获取输出流，响应先写入缓冲区，按flushPolicy合并写出
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 8192);
+            //保护out的写锁：不用synchronized，以免阻塞写时把虚拟线程固定在载体线程上
+            ReentrantLock writeLock = new ReentrantLock();
+            boolean flushEachMessage = flushPolicy == TcpReactorServer.FlushPolicy.MESSAGE;
             String clientMsg;
             String serverMsg;
-            flag2 = true;
-            while (flag2) {
-                //读取客户端发送的信息
-                byte[] buffer = new byte[BUFFER_SIZE];
-                int length;
-                //  System.out.println("Tcp Socket数据处理2：等待接收客户端数据");
-                //将从客户端收到的数据放到buffer中
-                while ((length = in.read(buffer)) != -1) {
-                    //从客户端收到的字符串
-                    clientMsg = new String(buffer, 0, length);
-                    if (clientMsg.contains("XAH")) {
-                        //收到心跳包信息，不做任何处理
-                        serverMsg = clientMsg;
+            //读缓冲区在整个连接中重复使用，能容纳一条最长的消息，解析后剩余的不完整消息保留到下次读取
+            ByteBuffer buffer = ByteBuffer.allocate(maxFrameLength + frameCodec.headerLength() + 2);
+            TcpFrameCodec.Frame frame = new TcpFrameCodec.Frame();
+            //空闲检测：读空闲时关闭socket使阻塞的read()抛出异常结束本线程；
+            //写空闲时在另一个线程中发送心跳包，时间轮线程不做阻塞的socket写
+            idle = idleWheel.register(readIdleTimeout, writeIdleTimeout, allIdleTimeout, (timeout, state) -> {
+                try {
+                    if (state == IdleTimeoutWheel.IdleState.WRITER_IDLE) {
+                        runHeartbeat(() -> {
+                            //正在写出数据时不需要心跳，上一个心跳仍阻塞在写上时也不再发送
+                            if (!writeLock.tryLock()) return;
+                            try {
+                                frameCodec.encode(HEARTBEAT, out);
+                                out.flush();
+                                timeout.onWrite();
+                            } catch (IOException e) {
+                                e.printStackTrace();
+                            } finally {
+                                writeLock.unlock();
+                            }
+                        });
                     } else {
-                        //收到非心跳包信息，添加服务器信息后返回
-                        serverMsg = "Tcp Socket Server：" + clientMsg;
-                    }
-
-                    //socket输出
-                    pw.println(serverMsg);
-                    pw.flush();
-
-                    System.out.println("客户端发来：" + clientMsg);
-                    System.out.println("服务器返回："+ serverMsg);
-
-                    //收到客户端发送的"end"则关闭socket
-                    if ("end".equals(clientMsg)) {
-                        System.out.println("准备关闭Socket");
-                        pw.println("准备关闭Socket");
-                        pw.flush();
-                        flag2 = false;
-                        in.close();
-                        pw.close();
+                        System.out.println("客户端空闲超时(" + state + ")，关闭连接：" + socket);
                         socket.close();
-                        System.out.println("Socket Close.....");
-                        break;
-                    }
-                    //收到客户端发送的"stop"则关闭server
-                    else if ("stop".equals(clientMsg)) {
-                        System.out.println("准备关闭Tcp ServerSocket");
-                        pw.println("准备关闭Tcp ServerSocket");
-                        pw.flush();
-                        flag1 = false;
-                        flag2 = false;
-                        in.close();
-                        pw.close();
-                        socket.close();
-                        tcpSocket.close();
-                        System.out.println("Tcp ServerSocket Closed.....");
-                        sc.setAttribute("TcpServerStart", "no");
-                        break;
                     }
+                } catch (IOException e) {
+                    e.printStackTrace();
                 }
-                if (flag2) {
-                    try {
-                        //判断客户端socket是否关闭
-                        socket.sendUrgentData(0xFF);
-                        Thread.sleep(3000);
-                    } catch (InterruptedException e1) {
-                        e1.printStackTrace();
-                    } catch (IOException e2) {
-                        //客户端socket已关闭
-                        e2.printStackTrace();
-                        in.close();
-                        pw.close();
-                        socket.close();
-                        System.out.println("Client Socket Close.....");
-                        socketCounter--;
-                        break;
+            });
+            flag2 = true;
+            int length;
+            //  System.out.println("Tcp Socket数据处理2：等待接收客户端数据");
+            //将从客户端收到的数据放到buffer中，阻塞等待新数据，客户端关闭连接时返回-1
+            reading:
+            while ((length = in.read(buffer.array(), buffer.position(), buffer.remaining())) != -1) {
+                idle.onRead();
+                buffer.position(buffer.position() + length).flip();
+                //本次是否有响应写出，只解析出不完整的消息时没有写出，不能刷新写时间
+                boolean wrote = false;
+                writeLock.lock();
+                try {
+                    while (frameCodec.decode(buffer, frame)) {
+                        wrote = true;
+                        //心跳包走快速通道，直接从读缓冲区回送
+                        if (HeartbeatFastPath.TCP.check(buffer.array(), frame.getOffset(), frame.getLength())) {
+                            frameCodec.encode(buffer.array(), frame.getOffset(), frame.getLength(), out);
+                            if (flushEachMessage) out.flush();
+                            continue;
+                        }
+                        //从客户端收到的字符串
+                        clientMsg = frame.toString(charset);
+                        serverMsg = replyOf(clientMsg);
+
+                        //socket输出
+                        frameCodec.encode(serverMsg.getBytes(charset), out);
+                        if (flushEachMessage) out.flush();
+
+                        System.out.println("客户端发来：" + clientMsg);
+                        System.out.println("服务器返回：" + serverMsg);
+
+                        //收到客户端发送的"end"则关闭socket
+                        if ("end".equals(clientMsg)) {
+                            System.out.println("准备关闭Socket");
+                            frameCodec.encode("准备关闭Socket".getBytes(charset), out);
+                            out.flush();
+                            flag2 = false;
+                            in.close();
+                            out.close();
+                            socket.close();
+                            System.out.println("Socket Close.....");
+                            break reading;
+                        }
+                        //收到客户端发送的"stop"则关闭server
+                        else if ("stop".equals(clientMsg)) {
+                            System.out.println("准备关闭Tcp ServerSocket");
+                            frameCodec.encode("准备关闭Tcp ServerSocket".getBytes(charset), out);
+                            out.flush();
+                            flag1 = false;
+                            flag2 = false;
+                            in.close();
+                            out.close();
+                            socket.close();
+                            tcpSocket.close();
+                            System.out.println("Tcp ServerSocket Closed.....");
+                            sc.setAttribute("TcpServerStart", "no");
+                            break reading;
+                        }
                     }
-                    System.out.println("当前流中的数据已读完，正在等待新数据......");
+                    //本次读到的所有消息的响应一次写出
+                    if (wrote) out.flush();
+                } finally {
+                    writeLock.unlock();
                 }
+                if (wrote) idle.onWrite();
+                buffer.compact();
+            }
+            if (flag2) {
+                //客户端socket已关闭
+                in.close();
+                out.close();
+                socket.close();
+                System.out.println("Client Socket Close.....");
+                socketCounter--;
             }
 
         } catch (IOException e) {
+            //消息超长或空闲超时关闭了socket，结束该连接
             e.printStackTrace();
+            try {
+                socket.close();
+            } catch (IOException e1) {
+                e1.printStackTrace();
+            }
+            System.out.println("Client Socket Close.....");
+            socketCounter--;
+        } finally {
+            if (idle != null) idle.cancel();
         }
     }
 
     @Override
     public void destroy() {
         System.out.println("Tcp服务器关闭");
+        if (reactorServer != null) reactorServer.stop();
+        idleWheel.stop();
+        heartbeatExecutor.shutdownNow();
         try {
             tcpSocket.close();
             tcpSocket = null;
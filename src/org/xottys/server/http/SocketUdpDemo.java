@@ -1,15 +1,21 @@
 /**
- * 使用参数：服务器地址localhost，端口号9000；客户端端口号：9001
+ * 使用参数：服务器地址localhost，端口号9000；回复发送到报文的来源地址和端口
  *
- * 本例通过HttpServlet启动DatagramSocket，演示了Udp Socket服务器的主要功能：
- * 1）在init()中实例化DatagramSocket，通常要绑定一个1024以上的端口号
- * 2）在service()中启动DatagramSocket，等待客户端数据，收到后对数据进行解析和处理，并组织服务器数据输出到客户端，其中主要使用了：
- * --udpSocket.receive(dataPacket):接收客户端数据到dataPacket中
- * --udpSocket.send(dataPacket)：发送服务器数据给客户端
- * 其中 dataPacket = new DatagramPacket(buffer, buffer.length)---接收用
- *     dataPacket = new DatagramPacket(buffer, buffer.length,单播或广播ip,port)---发送用
- * 3) 在destroy()中完成DatagramSocket关闭
- * 4） 用ServletContext保存服务器是否启动的信息
+ * 本例通过HttpServlet启动UdpReceiveEngine，演示了Udp Socket服务器的主要功能：
+ * 1）在init()中读取配置，通常要绑定一个1024以上的端口号
+ * 2）在service()中启动UdpReceiveEngine，等待客户端数据，收到后对数据进行解析和处理，并组织服务器数据输出到客户端，其中主要使用了：
+ * --channel.receive(buffer):接收客户端数据到可重用的buffer中
+ * --channel.send(buffer, address)：发送服务器数据给客户端
+ * 接收线程数由初始化参数receiveThreads设置(缺省为CPU核数)，支持SO_REUSEPORT时每个线程一个channel；
+ * 内核接收缓冲区由receiveBufferSize设置(缺省4M)，单个报文最大长度由packetSize设置(缺省2048)；
+ * batchSize大于0(缺省64)时为批量模式，每次唤醒读出所有已到达的报文，回复直接发送、发送缓冲区满时排队，为0时一次接收一个报文、立即回复
+ * 3) 在destroy()中完成channel关闭
+ * 4） 每个报文都回复到其真实的来源SocketAddress，多个客户端并发时不会互相串扰；UdpPeerTable记录发送过报文的客户端
+ * (最多maxPeers个，缺省10000，超过peerIdleTimeout秒没有报文的优先清除，缺省300秒)，
+ * 服务器已启动后再请求并带上push参数，可以把push的内容推送给所有已知客户端
+ * 5） 用ServletContext保存服务器是否启动的信息
+ * 6） 心跳包(含"XAH")通过HeartbeatFastPath在原始字节上识别，直接回送收到的报文，不解码也不重新分配；
+ * 计数保存在ServletContext属性UdpHeartbeatStats中，服务器已启动后再次请求时与客户端表、接收引擎的统计一起在响应中返回
  * <p>
  * <p>
  * <br/>Copyright (C), 2017-2018, Steve Chang
@@ -30,42 +36,34 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.net.*;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
 
 @WebServlet(name = "SocketUdp", urlPatterns = ("/udp"))
 public class SocketUdpDemo extends HttpServlet {
-    private byte[] buffer = new byte[1024];
-    private DatagramSocket udpSocket = null;
-    private DatagramPacket dataPacket = null;
+    private UdpReceiveEngine udpEngine;
     private InetSocketAddress socketAddress = null;
-    private InetAddress clientAddress;
-    private int clientPort = 9001;
-    private String clientData;
     private int serverPort = 9000;
+    //发送过报文的客户端
+    private UdpPeerTable peerTable;
+    private int receiveThreads, receiveBufferSize, packetSize, batchSize;
+    private ServletContext sc;
 
     @Override
     public void init() throws ServletException {
         super.init();
+        getServletContext().setAttribute("UdpHeartbeatStats", HeartbeatFastPath.UDP);
         //根据端口号创建套接字地址,一个网卡则为本机当前唯一IP地址
         socketAddress = new InetSocketAddress(serverPort);
-        try {
-            //单播用udp socket
-            udpSocket = new DatagramSocket(null);
-            udpSocket = new DatagramSocket(null);
-            udpSocket.setReuseAddress(true);
-            udpSocket.bind(socketAddress);
-
-            // 创建数据报套接字，将其绑定到指定的本地地址
-             udpSocket = new DatagramSocket(socketAddress);
-
-
-
-            System.out.println("Udp服务端启动1");
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        dataPacket = new DatagramPacket(buffer, buffer.length);
+        receiveThreads = intParameter("receiveThreads", Runtime.getRuntime().availableProcessors());
+        receiveBufferSize = intParameter("receiveBufferSize", 4 * 1024 * 1024);
+        packetSize = intParameter("packetSize", 2048);
+        batchSize = intParameter("batchSize", 64);
+        peerTable = new UdpPeerTable(intParameter("maxPeers", 10000), intParameter("peerIdleTimeout", 300) * 1000L);
+        System.out.println("Udp服务端启动1");
     }
 
     @Override
@@ -74,7 +72,7 @@ public class SocketUdpDemo extends HttpServlet {
         PrintWriter out;
 
         //将该服务器是否启动过设置到Application属性中，并据此判断再次收到客户端启动请求时如何处理
-        ServletContext sc=getServletConfig().getServletContext();
+        sc=getServletConfig().getServletContext();
         String startedFlag = (String) sc.getAttribute("UdpServerStart");
 
         //服务器初次启动或ServerSocket被关闭后需再次启动服务
@@ -92,69 +90,27 @@ public class SocketUdpDemo extends HttpServlet {
             } catch (IOException e) {
                 e.printStackTrace();
             }
-            //启动Udp Socket，并收取报文
-            new Thread(() -> {
-                try {
-                    if (udpSocket.isClosed()){
-                        udpSocket = new DatagramSocket(null);
-                        udpSocket.setReuseAddress(true);
-                        udpSocket.bind(socketAddress);}
-                } catch (SocketException e) {
-                    e.printStackTrace();
-                }
-                System.out.println("Udp服务器准备接收数据");
-                while (true) {
-                    try {
-                        if (udpSocket.isClosed())
-                        {
-                            udpSocket = new DatagramSocket(null);
-                            udpSocket.setReuseAddress(true);
-                            udpSocket.bind(socketAddress);
-                        }
-                        udpSocket.setReceiveBufferSize(1024);
-                        udpSocket.setSendBufferSize(1024);
-                        buffer = new byte[1024];
-                        dataPacket = new DatagramPacket(buffer, buffer.length);
-                        System.out.println("Udp Server waiting for client data");
-                        //从此套接字接收数据报文
-                        udpSocket.receive(dataPacket);
-                        //从收到的数据报中解析发送方的IP地址
-                        clientAddress = dataPacket.getAddress();
-
-                        //从收到的数据报中解析发送方的端口号
-                        clientPort = dataPacket.getPort();
-
-                        //从收到的数据报中获取发送方的数据
-                        clientData = new String(dataPacket.getData(), 0, dataPacket.getLength(),"UTF-8");
-
-                        System.out.println("Udp Server received:" + clientData);
-                        if (clientData.contains("XAH")) {
-                            //收到心跳包信息，不做任何加工,直接回送给客户端
-                            send(clientData);
-                        } else {
-                            //收到非心跳包信息，添加服务器信息后，回送给客户端
-                            send("Udp Socket Server:" + clientData);
-                        }
-
-                        if (clientData.equals("stop")) break;
-
-                    } catch (IOException e1) {
-                        e1.printStackTrace();
-                       // if (udpSocket != null) udpSocket.close();
-                       //  break;
-                    }
-                }
+            //启动Udp接收引擎，由其接收线程收取报文
+            udpEngine = new UdpReceiveEngine(socketAddress, receiveThreads, receiveBufferSize, packetSize,
+                    this::packetHandle);
+            udpEngine.setBatchSize(batchSize);
+            try {
+                udpEngine.start();
+                System.out.println("Udp服务器准备接收数据：" + udpEngine.getChannelCount() + " channels, "
+                        + receiveThreads + " threads, SO_REUSEPORT=" + udpEngine.isReusePort());
+            } catch (IOException e) {
+                e.printStackTrace();
                 sc.setAttribute("UdpServerStart", "no");
-                udpSocket.close();
-                System.out.println("Udp Serverc losed");
-            }).start();
+            }
         } else {
             System.out.println("Udp Server has been started");
+            String push = request.getParameter("push");
+            if (push != null) push(push);
 
             response.setCharacterEncoding("UTF-8");
             try {
                 out = response.getWriter();
-                out.print("Udp Server has been started!");
+                out.print("Udp Server has been started!\n" + HeartbeatFastPath.UDP + "\n" + peerTable + "\n" + udpEngine);
                 out.flush();
                 out.close();
             } catch (IOException e) {
@@ -163,31 +119,71 @@ public class SocketUdpDemo extends HttpServlet {
         }
     }
 
+    //处理收到的报文，在UdpReceiveEngine的接收线程中调用，多个线程会同时调用
+    private void packetHandle(UdpReceiveEngine.Sender sender, SocketAddress source, ByteBuffer data)
+            throws IOException {
+        //记录发送方，回复直接发送到报文的来源地址和端口
+        peerTable.update(source, data.remaining());
+
+        //心跳包走快速通道：不解码，把收到的报文原样回送
+        if (HeartbeatFastPath.UDP.check(data, data.position(), data.remaining())) {
+            sender.send(data, source);
+            return;
+        }
+
+        //从收到的数据报中获取发送方的数据
+        String clientData = StandardCharsets.UTF_8.decode(data).toString();
+
+        System.out.println("Udp Server received:" + clientData);
+        //收到非心跳包信息，添加服务器信息后，回送给客户端
+        send(sender, "Udp Socket Server:" + clientData, source);
+
+        if (clientData.equals("stop")) {
+            udpEngine.stop();
+            sc.setAttribute("UdpServerStart", "no");
+            System.out.println("Udp Serverc losed");
+        }
+    }
 
     //发送udp报文给客户端
-    private void send(String info) throws IOException {
-        //用于接收非Demo发送的数据
-        clientPort=9001;
-        buffer = new byte[1024];
-        dataPacket = new DatagramPacket(buffer, buffer.length);
-        dataPacket.setPort(clientPort);
-        dataPacket.setData(info.getBytes("UTF-8"));
-
-        dataPacket.setAddress(clientAddress);
-        /*改设为广播地址，就可以直接发送Udp广播
+    private void send(UdpReceiveEngine.Sender sender, String info, SocketAddress target) throws IOException {
+        sender.send(ByteBuffer.wrap(info.getBytes(StandardCharsets.UTF_8)), target);
+        /*改设为广播地址，就可以直接发送Udp广播，channel需设置StandardSocketOptions.SO_BROADCAST
         String host = "255.255.255.255"; //也可以是其它广播地址
-        InetAddress addr = InetAddress.getByName(host);
-        dataPacket.setAddress(addr);*/
+        sender.send(buffer, new InetSocketAddress(host, 9001));*/
+
+        System.out.println("Udp Server send：" + info+"---"+target);
+    }
 
-        udpSocket.send(dataPacket);
+    //主动推送给所有已知客户端，编码一次，每个客户端发送同一份数据
+    private void push(String info) {
+        DatagramChannel channel = udpEngine == null ? null : udpEngine.getChannel();
+        if (channel == null) return;
+        ByteBuffer data = ByteBuffer.wrap(info.getBytes(StandardCharsets.UTF_8));
+        int sent = 0;
+        for (UdpPeerTable.Peer peer : peerTable.peers()) {
+            try {
+                channel.send(data.duplicate(), peer.getAddress());
+                sent++;
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        System.out.println("Udp Server push：" + info + "---" + sent + " peers");
+    }
 
-        System.out.println("Udp Server send：" + info+"---"+clientPort);
+    //读取整数型初始化参数
+    private int intParameter(String name, int defaultValue) {
+        String value = getInitParameter(name);
+        return value == null ? defaultValue : Integer.parseInt(value);
     }
 
     @Override
     public void destroy() {
         System.out.println("Udp Server Closed");
-        udpSocket = null;
+        if (udpEngine != null) udpEngine.stop();
+        udpEngine = null;
+        peerTable.clear();
         super.destroy();
     }
 }
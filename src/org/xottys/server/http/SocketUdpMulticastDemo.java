@@ -1,15 +1,24 @@
 /**
  * 使用参数：服务器地址localhost或实际ip地址，端口号9002；客户端端口号：9001
  *
- * 本例通过HttpServlet启动MulticastSocket，演示了Udp组播Socket服务器的主要功能：
- * 1）在init()中实例化MulticastSocket，通常要绑定一个1024以上的端口号
- * 2）在service()中启动MulticastSocket，等待客户端数据，收到后对数据进行解析和处理，并组织服务器数据输出到客户端，其中主要使用了：
- * --udpSocket.receive(dataPacket):接收客户端数据到dataPacket中
- * --udpSocket.send(dataPacket)：发送服务器数据给客户端
- * 其中 dataPacket = new DatagramPacket(buffer, buffer.length)---接收用
- *     dataPacket = new DatagramPacket(buffer, buffer.length,组播ip,port)---发送用
- * 3) 在destroy()中完成MulticastSocket关闭
+ * 本例通过HttpServlet启动加入组播组的UdpReceiveEngine，演示了Udp组播Socket服务器的主要功能：
+ * 1）在init()中解析组播地址并选择网卡，通常要绑定一个1024以上的端口号；网卡由初始化参数interface指定，
+ * 缺省为第一个支持组播的非回环网卡；指定的网卡不存在或没有可用的网卡时init()失败，Servlet不会启动
+ * 2）在service()中启动UdpReceiveEngine，等待客户端数据，收到后对数据进行解析和处理，并组织服务器数据输出到客户端，其中主要使用了：
+ * --channel.join(group, networkInterface):加入组播组
+ * --channel.receive(buffer):接收客户端数据到可重用的buffer中
+ * --MulticastPublisher.publish(buffer)：发送服务器数据给客户端
+ * 组播报文会送到所有加入该组的socket，所以缺省只用一个接收线程(receiveThreads)；
+ * batchSize大于0(缺省64)时每次唤醒读出所有已到达的报文
+ * 3) 在destroy()中完成channel关闭
  * 4） 用ServletContext保存组播服务器是否启动的信息
+ * 5） 心跳包(含"XAH")通过HeartbeatFastPath在原始字节上识别，直接回送收到的报文，不解码；
+ * 计数保存在ServletContext属性UdpMulticastHeartbeatStats中，服务器已启动后再次请求时与接收引擎、publisher的统计一起在响应中返回
+ * 6） 所有回复和推送都由MulticastPublisher发出：初始化参数groups指定目标组播组(缺省为239.0.0.1:9001)，
+ * coalesce为true时把小消息合并到不超过mtu(缺省1500)的报文中，最多等待flushInterval毫秒(缺省5，必须大于0，否则初始化失败)；
+ * 服务器已启动后再请求并带上push参数，可以把push的内容推送到所有组播组。
+ * 回复不经过UdpReceiveEngine的Sender，所以批量模式在这里只批量接收，发送缓冲区满时的回复排队只对单播回复(SocketUdpDemo)有效；
+ * 组播的发送由publisher的coalesce合并
  * <p>
  * <p>
  * <br/>Copyright (C), 2017-2018, Steve Chang
@@ -30,35 +39,53 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.net.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
 
 @WebServlet(name = "SocketUdpMulticast", urlPatterns = ("/multicast"))
 public class SocketUdpMulticastDemo extends HttpServlet {
     //组播地址
     private static final String mhost  ="239.0.0.1";
 
-    private byte[] buffer = new byte[1024];
-    private MulticastSocket mUdpSocket=null;
-    private DatagramPacket dataPacket = null;
+    private UdpReceiveEngine udpEngine;
     private int clientPort = 9001;
-    private String clientData;
     private int serverPort = 9002;
+    //组播地址只解析一次
+    private InetAddress groupAddress;
+    private NetworkInterface networkInterface;
+    //回复和推送都通过publisher发送到配置的组播组
+    private MulticastPublisher publisher;
+    private int receiveThreads, receiveBufferSize, packetSize, batchSize;
+    private ServletContext sc;
 
     @Override
     public void init() throws ServletException {
         super.init();
+        getServletContext().setAttribute("UdpMulticastHeartbeatStats", HeartbeatFastPath.MULTICAST);
+        receiveThreads = intParameter("receiveThreads", 1);
+        receiveBufferSize = intParameter("receiveBufferSize", 4 * 1024 * 1024);
+        packetSize = intParameter("packetSize", 2048);
+        batchSize = intParameter("batchSize", 64);
         try {
-            // 创建组播数据报套接字，将其绑定到指定的本地地址
-            mUdpSocket= new MulticastSocket(serverPort);
-            mUdpSocket.joinGroup(InetAddress.getByName(mhost));
-            mUdpSocket.setTimeToLive(32);
-
-            System.out.println("Udp组播服务端启动1");
-        } catch (IOException e) {
-            e.printStackTrace();
+            groupAddress = InetAddress.getByName(mhost);
+            networkInterface = multicastInterface(getInitParameter("interface"));
+            String groups = getInitParameter("groups") == null ? mhost + ":" + clientPort : getInitParameter("groups");
+            publisher = new MulticastPublisher(MulticastPublisher.parse(groups, networkInterface), 32,
+                    intParameter("mtu", 1500), Boolean.parseBoolean(getInitParameter("coalesce")),
+                    intParameter("flushInterval", 5));
+
+            System.out.println("Udp组播服务端启动1：" + networkInterface);
+        } catch (IOException | IllegalArgumentException e) {
+            //没有publisher时无法回复任何报文，不启动本Servlet
+            if (publisher != null) publisher.close();
+            throw new ServletException("Udp组播服务端初始化失败：" + e.getMessage(), e);
         }
-
-        dataPacket = new DatagramPacket(buffer, buffer.length);
     }
 
     @Override
@@ -67,7 +94,7 @@ public class SocketUdpMulticastDemo extends HttpServlet {
         PrintWriter out;
 
         //将该服务器是否启动过设置到Application属性中，并据此判断再次收到客户端启动请求时如何处理
-        ServletContext sc=getServletConfig().getServletContext();
+        sc=getServletConfig().getServletContext();
         String startedFlag = (String) sc.getAttribute("UdpMulticastServerStart");
 
         //服务器初次启动或ServerSocket被关闭后需再次启动服务
@@ -85,62 +112,39 @@ public class SocketUdpMulticastDemo extends HttpServlet {
             } catch (IOException e) {
                 e.printStackTrace();
             }
-            //启动Udp Socket，并收取报文
-            new Thread(() -> {
-                try {
-                    if (mUdpSocket.isClosed()){
-                        mUdpSocket= new MulticastSocket(serverPort);
-                        mUdpSocket.joinGroup(InetAddress.getByName(mhost));
-                        mUdpSocket.setTimeToLive(32);  }
-
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+            //启动加入组播组的Udp接收引擎，并收取报文
+            udpEngine = new UdpReceiveEngine(new InetSocketAddress(serverPort), receiveThreads, receiveBufferSize,
+                    packetSize, this::packetHandle);
+            udpEngine.joinGroup(groupAddress, networkInterface);
+            udpEngine.setMulticastTtl(32);
+            udpEngine.setBatchSize(batchSize);
+            try {
+                udpEngine.start();
                 System.out.println("Udp组播服务器准备接收数据");
-                while (true) {
-                    try {
-                        mUdpSocket.setReceiveBufferSize(1024);
-                        mUdpSocket.setSendBufferSize(1024);
-                        buffer = new byte[1024];
-                        dataPacket = new DatagramPacket(buffer, buffer.length);
-                        System.out.println("Udp Server waiting for client data");
-                        //从此套接字接收数据报文
-                        mUdpSocket.receive(dataPacket);
-
-                        //从收到的数据报中解析发送方的端口号
-                        clientPort = dataPacket.getPort();
-
-                        //从收到的数据报中获取发送方的数据
-                        clientData = new String(dataPacket.getData(), 0, dataPacket.getLength(),"UTF-8");
-
-                        System.out.println("Udp Server received:" + clientData);
-                        if (clientData.contains("XAH")) {
-                            //收到心跳包信息，不做任何加工,直接回送给客户端
-                            send(clientData);
-                        } else {
-                            //收到非心跳包信息，添加服务器信息后，回送给客户端
-                            send("Udp Socket Server:" + clientData);
-                        }
-
-                        if (clientData.equals("stop")) break;
-
-                    } catch (IOException e1) {
-                        e1.printStackTrace();
-                       // if (udpSocket != null) udpSocket.close();
-                       //  break;
-                    }
-                }
+            } catch (IOException e) {
+                e.printStackTrace();
                 sc.setAttribute("UdpMulticastServerStart", "no");
-                mUdpSocket.close();
-                System.out.println("Udp Multicast Server closed");
-            }).start();
+            }
         } else {
             System.out.println("Udp Multicast Server has been started");
+            String push = request.getParameter("push");
+            String pushResult = "";
+            if (push != null) {
+                try {
+                    publisher.publish(push.getBytes(StandardCharsets.UTF_8));
+                    System.out.println("Udp Multicast Server push：" + push);
+                } catch (IOException e) {
+                    //如消息超过单个组播报文的上限，不发送，在响应中返回原因
+                    e.printStackTrace();
+                    pushResult = "\npush failed: " + e.getMessage();
+                }
+            }
 
             response.setCharacterEncoding("UTF-8");
             try {
                 out = response.getWriter();
-                out.print("Udp Multicast Server has been started!");
+                out.print("Udp Multicast Server has been started!\n" + HeartbeatFastPath.MULTICAST + "\n" + udpEngine
+                        + "\n" + publisher + pushResult);
                 out.flush();
                 out.close();
             } catch (IOException e) {
@@ -149,23 +153,65 @@ public class SocketUdpMulticastDemo extends HttpServlet {
         }
     }
 
+    //处理收到的报文，在UdpReceiveEngine的接收线程中调用
+    private void packetHandle(UdpReceiveEngine.Sender sender, SocketAddress source, ByteBuffer data)
+            throws IOException {
+        //心跳包走快速通道：不解码，把收到的报文原样发送到组播组
+        if (HeartbeatFastPath.MULTICAST.check(data, data.position(), data.remaining())) {
+            publisher.publish(data);
+            return;
+        }
+
+        //从收到的数据报中获取发送方的数据
+        String clientData = StandardCharsets.UTF_8.decode(data).toString();
+
+        System.out.println("Udp Server received:" + clientData);
+        //收到非心跳包信息，添加服务器信息后，回送给客户端
+        send("Udp Socket Server:" + clientData);
+
+        if (clientData.equals("stop")) {
+            udpEngine.stop();
+            sc.setAttribute("UdpMulticastServerStart", "no");
+            System.out.println("Udp Multicast Server closed");
+        }
+    }
 
     //发送udp报文给客户端
     private void send(String info) throws IOException {
-        //用于接收非Demo发送的数据
-        clientPort=9001;
-        buffer = new byte[1024];
-        dataPacket = new DatagramPacket(buffer, buffer.length,InetAddress.getByName(mhost),clientPort);
-        dataPacket.setData(info.getBytes("UTF-8"));
-        mUdpSocket.send(dataPacket);
+        publisher.publish(info.getBytes(StandardCharsets.UTF_8));
 
         System.out.println("Udp Multicast Server send：" + info);
     }
 
+    //按名称选择网卡，未指定时选第一个已启用、支持组播的非回环网卡，都没有时用回环网卡
+    private static NetworkInterface multicastInterface(String name) throws SocketException {
+        if (name != null) {
+            NetworkInterface ni = NetworkInterface.getByName(name);
+            if (ni == null) throw new SocketException("网卡不存在：" + name);
+            return ni;
+        }
+        NetworkInterface loopback = null;
+        for (NetworkInterface ni : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+            if (!ni.isUp() || !ni.supportsMulticast()) continue;
+            if (!ni.isLoopback()) return ni;
+            loopback = ni;
+        }
+        if (loopback == null) throw new SocketException("没有支持组播的网卡，请用初始化参数interface指定");
+        return loopback;
+    }
+
+    //读取整数型初始化参数
+    private int intParameter(String name, int defaultValue) {
+        String value = getInitParameter(name);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+
     @Override
     public void destroy() {
         System.out.println("Udp Multicast Server Closed");
-        mUdpSocket=null;
+        if (udpEngine != null) udpEngine.stop();
+        udpEngine = null;
+        if (publisher != null) publisher.close();
         super.destroy();
     }
 }
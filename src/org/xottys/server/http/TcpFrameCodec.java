@@ -0,0 +1,258 @@
+/**
+ * 本接口是SocketTcpDemo的消息分帧层，解决Tcp字节流中消息粘连和拆分的问题：
+ * 1）decode()直接在可重用的ByteBuffer上解析，找到完整的一帧后只记录其位置和长度到可重用的Frame中，不复制、不分配对象；
+ * 帧不完整时不移动position，等下次读到更多数据后再解析
+ * 2）encode()按帧格式写出一条消息：帧头+内容+帧尾，可以直接写入ByteBuffer或OutputStream
+ * 3）提供三种实现，用forName()按名称获取：
+ * --line：以\n分隔的文本行，忽略行尾的\r
+ * --length：4字节大端长度前缀+二进制内容
+ * --raw：每次读到的全部数据作为一帧，与原来按read()划分消息的方式相同，用于兼容旧客户端
+ * <p>
+ * <br/>Copyright (C), 2017-2018, Steve Chang
+ * <br/>This program is protected by copyright laws.
+ * <br/>Program Name:TcpFrameCodec
+ * <br/>Date:May，2018
+ *
+ * @author xottys@163.com
+ * @version 1.0
+ */
+package org.xottys.server.http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+public interface TcpFrameCodec {
+
+    /**
+     * 从in的position开始解析一帧
+     * @return 解析到完整的一帧时返回true，frame指向帧内容，in的position移到下一帧开始处；否则返回false，in不变
+     * @throws IOException 帧长度超过maxFrameLength或格式错误
+     */
+    boolean decode(ByteBuffer in, Frame frame) throws IOException;
+
+    //帧头长度
+    int headerLength();
+
+    //帧尾长度
+    int trailerLength();
+
+    //写入长度为payloadLength的帧的帧头
+    void writeHeader(ByteBuffer out, int payloadLength);
+
+    //写入帧尾
+    void writeTrailer(ByteBuffer out);
+
+    //把一条消息编码到out中，out剩余空间不足时抛出BufferOverflowException
+    default void encode(ByteBuffer payload, ByteBuffer out) {
+        writeHeader(out, payload.remaining());
+        out.put(payload);
+        writeTrailer(out);
+    }
+
+    //把payload[offset,offset+length)编码后写到输出流，不分配对象
+    void encode(byte[] payload, int offset, int length, OutputStream out) throws IOException;
+
+    //把一条消息编码后写到输出流
+    default void encode(byte[] payload, OutputStream out) throws IOException {
+        encode(payload, 0, payload.length, out);
+    }
+
+    //按名称获取分帧方式：line、length或raw
+    static TcpFrameCodec forName(String name, int maxFrameLength) {
+        if ("length".equals(name)) return new LengthPrefixed(maxFrameLength);
+        if ("raw".equals(name)) return new Raw();
+        return new Line(maxFrameLength);
+    }
+
+    //一帧内容在缓冲区中的位置，解析时重复使用，不复制数据
+    final class Frame {
+        private ByteBuffer buffer;
+        private int offset;
+        private int length;
+
+        void set(ByteBuffer buffer, int offset, int length) {
+            this.buffer = buffer;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        public ByteBuffer getBuffer() {
+            return buffer;
+        }
+
+        public int getOffset() {
+            return offset;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        //帧内容是否与bytes完全相同
+        public boolean contentEquals(byte[] bytes) {
+            if (bytes.length != length) return false;
+            for (int i = 0; i < length; i++)
+                if (buffer.get(offset + i) != bytes[i]) return false;
+            return true;
+        }
+
+        //帧内容的只读视图，共享原缓冲区，在下次读取前有效
+        public ByteBuffer slice() {
+            ByteBuffer view = buffer.duplicate();
+            view.limit(offset + length).position(offset);
+            return view.slice();
+        }
+
+        //把帧内容复制到dst，不分配对象
+        public void copyTo(ByteBuffer dst) {
+            int position = buffer.position(), limit = buffer.limit();
+            buffer.limit(offset + length).position(offset);
+            dst.put(buffer);
+            buffer.limit(limit).position(position);
+        }
+
+        //解码为字符串，只在需要处理文本内容时调用
+        public String toString(Charset charset) {
+            return charset.decode(slice()).toString();
+        }
+    }
+
+    //以\n分隔的文本行
+    final class Line implements TcpFrameCodec {
+        private final int maxFrameLength;
+
+        public Line(int maxFrameLength) {
+            this.maxFrameLength = maxFrameLength;
+        }
+
+        @Override
+        public boolean decode(ByteBuffer in, Frame frame) throws IOException {
+            int start = in.position();
+            int limit = in.limit();
+            for (int i = start; i < limit; i++) {
+                if (in.get(i) == '\n') {
+                    int end = i > start && in.get(i - 1) == '\r' ? i - 1 : i;
+                    if (end - start > maxFrameLength) throw new IOException("消息超长：" + (end - start));
+                    frame.set(in, start, end - start);
+                    in.position(i + 1);
+                    return true;
+                }
+            }
+            if (limit - start > maxFrameLength) throw new IOException("消息超长：" + (limit - start));
+            return false;
+        }
+
+        @Override
+        public int headerLength() {
+            return 0;
+        }
+
+        @Override
+        public int trailerLength() {
+            return 1;
+        }
+
+        @Override
+        public void writeHeader(ByteBuffer out, int payloadLength) {
+        }
+
+        @Override
+        public void writeTrailer(ByteBuffer out) {
+            out.put((byte) '\n');
+        }
+
+        @Override
+        public void encode(byte[] payload, int offset, int length, OutputStream out) throws IOException {
+            out.write(payload, offset, length);
+            out.write('\n');
+        }
+    }
+
+    //4字节大端长度前缀
+    final class LengthPrefixed implements TcpFrameCodec {
+        private final int maxFrameLength;
+
+        public LengthPrefixed(int maxFrameLength) {
+            this.maxFrameLength = maxFrameLength;
+        }
+
+        @Override
+        public boolean decode(ByteBuffer in, Frame frame) throws IOException {
+            int start = in.position();
+            if (in.limit() - start < 4) return false;
+            int length = in.getInt(start);
+            if (length < 0 || length > maxFrameLength) throw new IOException("消息长度无效：" + length);
+            if (in.limit() - start - 4 < length) return false;
+            frame.set(in, start + 4, length);
+            in.position(start + 4 + length);
+            return true;
+        }
+
+        @Override
+        public int headerLength() {
+            return 4;
+        }
+
+        @Override
+        public int trailerLength() {
+            return 0;
+        }
+
+        @Override
+        public void writeHeader(ByteBuffer out, int payloadLength) {
+            out.putInt(payloadLength);
+        }
+
+        @Override
+        public void writeTrailer(ByteBuffer out) {
+        }
+
+        @Override
+        public void encode(byte[] payload, int offset, int length, OutputStream out) throws IOException {
+            out.write(length >>> 24);
+            out.write(length >>> 16);
+            out.write(length >>> 8);
+            out.write(length);
+            out.write(payload, offset, length);
+        }
+    }
+
+    //每次读到的全部数据作为一帧
+    final class Raw implements TcpFrameCodec {
+        @Override
+        public boolean decode(ByteBuffer in, Frame frame) {
+            if (!in.hasRemaining()) return false;
+            frame.set(in, in.position(), in.remaining());
+            in.position(in.limit());
+            return true;
+        }
+
+        @Override
+        public int headerLength() {
+            return 0;
+        }
+
+        @Override
+        public int trailerLength() {
+            return 1;
+        }
+
+        @Override
+        public void writeHeader(ByteBuffer out, int payloadLength) {
+        }
+
+        //与原来PrintWriter.println()的输出相同
+        @Override
+        public void writeTrailer(ByteBuffer out) {
+            out.put((byte) '\n');
+        }
+
+        @Override
+        public void encode(byte[] payload, int offset, int length, OutputStream out) throws IOException {
+            out.write(payload, offset, length);
+            out.write('\n');
+        }
+    }
+}
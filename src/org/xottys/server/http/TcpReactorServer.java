@@ -0,0 +1,453 @@
+/**
+ * 本类是基于NIO Selector的非阻塞Tcp服务器，供SocketTcpDemo以reactor模式运行：
+ * 1）一个acceptor线程用ServerSocketChannel.accept()接收连接，然后轮流分配给N个reactor线程
+ * 2）每个reactor线程用一个Selector管理分配给它的所有连接，只在socket可读/可写时才处理，空闲连接不占用线程
+ * 3）每个连接有自己的堆外读缓冲区，收到的数据交给Handler处理，Handler通过Connection.send()回送数据
+ * 4）回送的数据先放入连接的发送队列，按FlushPolicy批量写出，一次gathering write(ByteBuffer[])写出队列中的全部数据；
+ * socket写不下时把剩余数据留在队列中并关注OP_WRITE，可写时再继续发送
+ * 5）线程总数为reactor数+1，与连接数无关，可以支持数万个长连接
+ * 6）setTcpNoDelay()设置是否关闭Nagle算法，批量写出后每次写出的数据已经合并，通常仍应关闭Nagle以减少延迟
+ * <p>
+ * <br/>Copyright (C), 2017-2018, Steve Chang
+ * <br/>This program is protected by copyright laws.
+ * <br/>Program Name:TcpReactorServer
+ * <br/>Date:May，2018
+ *
+ * @author xottys@163.com
+ * @version 1.0
+ */
+package org.xottys.server.http;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TcpReactorServer {
+    //每个连接写不出去的数据超过此值时认为客户端太慢，关闭连接
+    private static final int MAX_PENDING_BYTES = 1024 * 1024;
+    //一次gathering write最多写出的缓冲区个数，不超过系统的IOV_MAX
+    private static final int MAX_GATHER = 64;
+
+    //发送队列中的数据何时写到socket
+    public enum FlushPolicy {
+        //每次send()后立即写出，每条消息一次系统调用
+        MESSAGE,
+        //一次读到的数据全部处理完后写出，流水线发送的多条请求的响应合并为一次写出
+        READ,
+        //cork方式：本次Selector唤醒处理的所有连接都读完后再写出，待发送数据超过writeBufferSize时提前写出
+        WAKEUP
+    }
+
+    //收到数据、连接建立和关闭时的回调，都在连接所属的reactor线程中调用
+    public interface Handler {
+        void onOpen(Connection connection);
+
+        //data为本次读到的数据，处理完后其中剩余的数据会保留到下次读取
+        void onRead(Connection connection, ByteBuffer data) throws IOException;
+
+        void onClose(Connection connection);
+    }
+
+    private final int port;
+    private final int backlog;
+    private final int readBufferSize;
+    private final int writeBufferSize;
+    private final Handler handler;
+    private FlushPolicy flushPolicy = FlushPolicy.READ;
+    private boolean tcpNoDelay = true;
+    private final Reactor[] reactors;
+    private final AtomicInteger connectionCount = new AtomicInteger();
+
+    private ServerSocketChannel serverChannel;
+    private Thread acceptor;
+    private volatile boolean running;
+
+    public TcpReactorServer(int port, int backlog, int reactorCount, int readBufferSize, int writeBufferSize,
+                            Handler handler) {
+        this.port = port;
+        this.backlog = backlog;
+        this.readBufferSize = readBufferSize;
+        this.writeBufferSize = writeBufferSize;
+        this.handler = handler;
+        this.reactors = new Reactor[reactorCount];
+    }
+
+    //在start()之前设置
+    public void setFlushPolicy(FlushPolicy flushPolicy) {
+        this.flushPolicy = flushPolicy;
+    }
+
+    //在start()之前设置，缺省为true，即关闭Nagle算法
+    public void setTcpNoDelay(boolean tcpNoDelay) {
+        this.tcpNoDelay = tcpNoDelay;
+    }
+
+    public synchronized void start() throws IOException {
+        if (running) return;
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        serverChannel.bind(new InetSocketAddress(port), backlog);
+        running = true;
+
+        for (int i = 0; i < reactors.length; i++) {
+            reactors[i] = new Reactor(Selector.open());
+            reactors[i].thread = new Thread(reactors[i], "TcpReactor-" + i);
+            reactors[i].thread.start();
+        }
+        acceptor = new Thread(this::accept, "TcpAcceptor");
+        acceptor.start();
+    }
+
+    //停止服务器并关闭所有连接，可以在reactor线程中调用
+    public synchronized void stop() {
+        if (!running) return;
+        running = false;
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        for (Reactor reactor : reactors) {
+            if (reactor != null) reactor.selector.wakeup();
+        }
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public int getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    //接收连接，轮流分配给各reactor
+    private void accept() {
+        int next = 0;
+        while (running) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, tcpNoDelay);
+                reactors[next].register(channel);
+                next = (next + 1) % reactors.length;
+            } catch (ClosedChannelException e) {
+                break;
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private class Reactor implements Runnable {
+        private final Selector selector;
+        private final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<>();
+        //其他线程提交的、需要在本reactor线程中执行的任务
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        //WAKEUP策略下本次唤醒中有数据待写出的连接
+        private final List<Connection> corked = new ArrayList<>();
+        private Thread thread;
+
+        Reactor(Selector selector) {
+            this.selector = selector;
+        }
+
+        void register(SocketChannel channel) {
+            pending.add(channel);
+            selector.wakeup();
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    selector.select();
+                    registerPending();
+                    runTasks();
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        Connection connection = (Connection) key.attachment();
+                        if (!key.isValid()) continue;
+                        //Handler抛出的异常只关闭该连接，reactor线程继续处理其他连接
+                        try {
+                            if (key.isReadable()) connection.read();
+                            if (key.isValid() && key.isWritable()) connection.flush();
+                        } catch (RuntimeException e) {
+                            e.printStackTrace();
+                            connection.close();
+                        }
+                    }
+                    for (Connection connection : corked) {
+                        connection.corked = false;
+                        try {
+                            connection.flush();
+                        } catch (RuntimeException e) {
+                            e.printStackTrace();
+                            connection.close();
+                        }
+                    }
+                    corked.clear();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            //服务器停止，关闭本reactor的所有连接
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof Connection) ((Connection) key.attachment()).close();
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        private void runTasks() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        private void registerPending() {
+            SocketChannel channel;
+            while ((channel = pending.poll()) != null) {
+                Connection connection = new Connection(channel, this);
+                try {
+                    connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                } catch (ClosedChannelException e) {
+                    continue;
+                }
+                connectionCount.incrementAndGet();
+                try {
+                    handler.onOpen(connection);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                    connection.close();
+                }
+            }
+        }
+    }
+
+    //一个客户端连接，只能在其所属的reactor线程中使用
+    public class Connection {
+        private final SocketChannel channel;
+        private final Reactor reactor;
+        private final ByteBuffer readBuffer;
+        //待发送的数据，按顺序用gathering write写出
+        private final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<>();
+        //beginWrite()使用的可重用缓冲区，stagingView是其中待发送部分的视图，放在发送队列中
+        private ByteBuffer staging;
+        private ByteBuffer stagingView;
+        private boolean stagingQueued;
+        private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+        private int outboundBytes;
+        private SelectionKey key;
+        private boolean closed;
+        //数据发送完后关闭连接
+        private boolean closing;
+        //已加入reactor的待写出列表
+        private boolean corked;
+        //Handler可以在此保存每个连接的状态
+        private Object attachment;
+
+        Connection(SocketChannel channel, Reactor reactor) {
+            this.channel = channel;
+            this.reactor = reactor;
+            this.readBuffer = ByteBuffer.allocateDirect(readBufferSize);
+        }
+
+        public SocketChannel getChannel() {
+            return channel;
+        }
+
+        public Object getAttachment() {
+            return attachment;
+        }
+
+        public void setAttachment(Object attachment) {
+            this.attachment = attachment;
+        }
+
+        public boolean isClosed() {
+            return closed;
+        }
+
+        //把数据放入发送队列，不复制数据，调用后不能再修改data；何时写出由FlushPolicy决定
+        public void send(ByteBuffer data) {
+            if (closed || !data.hasRemaining()) return;
+            if (outboundBytes + data.remaining() > MAX_PENDING_BYTES) {
+                System.out.println("客户端接收太慢，关闭连接：" + channel);
+                close();
+                return;
+            }
+            outbound.add(data);
+            outboundBytes += data.remaining();
+            if (flushPolicy == FlushPolicy.MESSAGE) flush();
+        }
+
+        public void send(byte[] data) {
+            send(ByteBuffer.wrap(data));
+        }
+
+        /**
+         * 直接在连接的可重用缓冲区中写入待发送的数据，不分配对象，写完后调用endWrite()
+         * @return 可以写入至少length字节的缓冲区；缓冲区已被占用或空间不足时返回null，此时应改用send()
+         */
+        public ByteBuffer beginWrite(int length) {
+            if (closed) return null;
+            if (staging == null) {
+                staging = ByteBuffer.allocateDirect(writeBufferSize);
+                stagingView = staging.duplicate();
+            }
+            if (!stagingQueued) {
+                staging.clear();
+                stagingView.limit(0).position(0);
+            } else if (outbound.peekLast() != stagingView) {
+                //之后已有其他数据排队，追加到缓冲区会打乱发送顺序
+                return null;
+            }
+            return staging.remaining() >= length ? staging : null;
+        }
+
+        //提交beginWrite()之后写入的数据
+        public void endWrite() {
+            int added = staging.position() - stagingView.limit();
+            if (added == 0) return;
+            //与send()相同的积压上限，对方不读数据时不能无限排队
+            if (outboundBytes + added > MAX_PENDING_BYTES) {
+                System.out.println("客户端接收太慢，关闭连接：" + channel);
+                close();
+                return;
+            }
+            stagingView.limit(staging.position());
+            if (!stagingQueued) {
+                outbound.add(stagingView);
+                stagingQueued = true;
+            }
+            outboundBytes += added;
+            if (flushPolicy == FlushPolicy.MESSAGE) flush();
+        }
+
+        //在本连接所属的reactor线程中执行task，供其他线程(如空闲检测)操作连接
+        public void execute(Runnable task) {
+            reactor.execute(task);
+        }
+
+        //发出send()之后还没有写出的数据
+        public void flushNow() {
+            flush();
+        }
+
+        //把已放入队列的数据发送完后再关闭连接
+        public void closeAfterFlush() {
+            closing = true;
+        }
+
+        public void close() {
+            if (closed) return;
+            closed = true;
+            if (key != null) key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            outbound.clear();
+            outboundBytes = 0;
+            stagingQueued = false;
+            connectionCount.decrementAndGet();
+            try {
+                handler.onClose(this);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+
+        //停止整个服务器
+        public void stopServer() {
+            stop();
+        }
+
+        private void read() {
+            try {
+                int n = channel.read(readBuffer);
+                if (n < 0) {
+                    close();
+                    return;
+                }
+                readBuffer.flip();
+                handler.onRead(this, readBuffer);
+                readBuffer.compact();
+                //缓冲区已满仍无法处理，说明消息超长
+                if (!readBuffer.hasRemaining()) {
+                    System.out.println("消息超过读缓冲区大小，关闭连接：" + channel);
+                    close();
+                    return;
+                }
+                if (flushPolicy != FlushPolicy.WAKEUP || outboundBytes >= writeBufferSize) flush();
+                else if (!corked) {
+                    corked = true;
+                    reactor.corked.add(this);
+                }
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        //用gathering write尽量写出发送队列中的数据，写不完时关注OP_WRITE
+        private void flush() {
+            if (closed) return;
+            try {
+                while (!outbound.isEmpty()) {
+                    int count = 0;
+                    for (ByteBuffer buffer : outbound) {
+                        gather[count++] = buffer;
+                        if (count == gather.length) break;
+                    }
+                    outboundBytes -= (int) channel.write(gather, 0, count);
+                    //本次写出的缓冲区没有全部写完，说明socket发送缓冲区已满
+                    boolean full = gather[count - 1].hasRemaining();
+                    Arrays.fill(gather, 0, count, null);
+                    while (!outbound.isEmpty() && !outbound.peek().hasRemaining()) {
+                        if (outbound.poll() == stagingView) stagingQueued = false;
+                    }
+                    if (full) break;
+                }
+                boolean drained = outbound.isEmpty();
+                if (drained && closing) {
+                    close();
+                    return;
+                }
+                if (!key.isValid()) return;
+                key.interestOps(drained ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            } catch (IOException e) {
+                close();
+            }
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/**
+ * 本类记录给Udp服务器发送过报文的客户端，供SocketUdpDemo按真实来源地址回复和主动推送：
+ * 1）以报文的来源SocketAddress(IP+端口)为键，保存最后收到报文的时间、报文数和字节数，多个接收线程可以同时更新
+ * 2）数量有上限，超过上限时先移除超过idleTimeout没有发送报文的客户端，仍然超过时移除最久没有发送报文的客户端，
+ * 每次清理到上限的90%，清理的开销分摊到多次更新中
+ * 3）推送时直接使用保存的SocketAddress，不需要再解析地址
+ * <p>
+ * <br/>Copyright (C), 2017-2018, Steve Chang
+ * <br/>This program is protected by copyright laws.
+ * <br/>Program Name:UdpPeerTable
+ * <br/>Date:May，2018
+ *
+ * @author xottys@163.com
+ * @version 1.0
+ */
+package org.xottys.server.http;
+
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class UdpPeerTable {
+    private final int maxPeers;
+    private final long idleTimeout;
+    private final ConcurrentMap<SocketAddress, Peer> peers = new ConcurrentHashMap<>();
+    //同一时刻只有一个线程清理
+    private final AtomicBoolean evicting = new AtomicBoolean();
+    private final AtomicLong evictions = new AtomicLong();
+
+    //idleTimeout单位为毫秒
+    public UdpPeerTable(int maxPeers, long idleTimeout) {
+        this.maxPeers = maxPeers;
+        this.idleTimeout = idleTimeout;
+    }
+
+    //收到报文时调用，返回该客户端的记录
+    public Peer update(SocketAddress address, int bytes) {
+        long now = System.currentTimeMillis();
+        Peer peer = peers.get(address);
+        if (peer == null) {
+            peer = new Peer(address, now);
+            Peer prev = peers.putIfAbsent(address, peer);
+            if (prev != null) peer = prev;
+            else if (peers.size() > maxPeers) evict(now);
+        }
+        peer.lastSeen = now;
+        peer.packets.incrementAndGet();
+        peer.bytes.addAndGet(bytes);
+        return peer;
+    }
+
+    public Peer get(SocketAddress address) {
+        return peers.get(address);
+    }
+
+    public Collection<Peer> peers() {
+        return peers.values();
+    }
+
+    public int size() {
+        return peers.size();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public void clear() {
+        peers.clear();
+    }
+
+    //先移除空闲超时的，仍超过上限时按最后活动时间移除最旧的
+    private void evict(long now) {
+        if (!evicting.compareAndSet(false, true)) return;
+        try {
+            int target = maxPeers * 9 / 10;
+            for (Peer peer : peers.values()) {
+                if (now - peer.lastSeen > idleTimeout && peers.remove(peer.address, peer))
+                    evictions.incrementAndGet();
+            }
+            int excess = peers.size() - target;
+            if (excess <= 0) return;
+            List<Peer> all = new ArrayList<>(peers.values());
+            all.sort((a, b) -> Long.compare(a.lastSeen, b.lastSeen));
+            for (int i = 0; i < excess && i < all.size(); i++) {
+                if (peers.remove(all.get(i).address, all.get(i))) evictions.incrementAndGet();
+            }
+        } finally {
+            evicting.set(false);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Udp peers: " + peers.size() + "/" + maxPeers + ", evictions=" + evictions.get();
+    }
+
+    //一个客户端
+    public static class Peer {
+        private final SocketAddress address;
+        private final long firstSeen;
+        private volatile long lastSeen;
+        private final AtomicLong packets = new AtomicLong();
+        private final AtomicLong bytes = new AtomicLong();
+
+        Peer(SocketAddress address, long firstSeen) {
+            this.address = address;
+            this.firstSeen = firstSeen;
+            this.lastSeen = firstSeen;
+        }
+
+        public SocketAddress getAddress() {
+            return address;
+        }
+
+        public long getFirstSeen() {
+            return firstSeen;
+        }
+
+        public long getLastSeen() {
+            return lastSeen;
+        }
+
+        public long getPackets() {
+            return packets.get();
+        }
+
+        public long getBytes() {
+            return bytes.get();
+        }
+    }
+}
@@ -0,0 +1,358 @@
+/**
+ * 本类是多线程的Udp接收引擎，供SocketUdpDemo使用：
+ * 1）打开N个DatagramChannel，都设置SO_REUSEPORT后绑定到同一端口，由内核按来源地址把报文分散到各个channel，
+ * 每个channel一个接收线程，接收能力随CPU核数增加
+ * 2）每个channel的内核接收缓冲区(SO_RCVBUF)可配置，突发流量时先在内核中排队，不会因应用来不及处理而丢包
+ * 3）每个接收线程只分配一个堆外缓冲区，之后每次接收都重复使用，不再为每个报文分配byte[]和DatagramPacket
+ * 4）SO_REUSEPORT需要Java 9以上和操作系统支持，项目按Java 8编译，所以通过反射获取；不支持时退回为一个channel，
+ * 由N个线程共同接收
+ * 5）setBatchSize()大于0时为批量模式：channel设为非阻塞并注册到Selector，每次唤醒时一次读出所有已到达的报文(最多batchSize个)，
+ * 减少唤醒和线程切换的次数；回复直接发送，只有socket发送缓冲区满(send()返回0)时才复制到回复队列，
+ * 此时暂停接收，等可写后先发完队列再继续；统计中的sent只包含真正发出的回复
+ * 6）joinGroup()加入组播组后可以用于组播服务器
+ * <p>
+ * <br/>Copyright (C), 2017-2018, Steve Chang
+ * <br/>This program is protected by copyright laws.
+ * <br/>Program Name:UdpReceiveEngine
+ * <br/>Date:May，2018
+ *
+ * @author xottys@163.com
+ * @version 1.0
+ */
+package org.xottys.server.http;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.net.SocketOption;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+public class UdpReceiveEngine {
+
+    //收到报文时的回调，在接收线程中调用；data只在回调期间有效，回送时可以直接用sender.send(data, source)
+    public interface Handler {
+        void onPacket(Sender sender, SocketAddress source, ByteBuffer data) throws IOException;
+    }
+
+    //发送回复，批量模式下发送缓冲区满时复制到回复队列中，可写后再发送
+    public interface Sender {
+        void send(ByteBuffer data, SocketAddress target) throws IOException;
+    }
+
+    //Java 9以上的StandardSocketOptions.SO_REUSEPORT，不支持时为null
+    private static final SocketOption<Boolean> SO_REUSEPORT = reusePortOption();
+
+    private final InetSocketAddress address;
+    private final int threadCount;
+    private final int receiveBufferSize;
+    private final int packetSize;
+    private final Handler handler;
+    //批量模式下每次唤醒最多处理的报文数，为0时为阻塞模式
+    private int batchSize;
+    //要加入的组播组及网卡
+    private final List<InetAddress> groups = new ArrayList<>();
+    private final List<NetworkInterface> interfaces = new ArrayList<>();
+    private int multicastTtl = 1;
+    private DatagramChannel[] channels;
+    private Thread[] threads;
+    private final List<Selector> selectors = new ArrayList<>();
+    private volatile boolean running;
+    private boolean reusePort;
+
+    //统计：收到的报文、发出的回复、处理的批数、因发送队列满而丢弃的回复
+    private final LongAdder received = new LongAdder();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    /**
+     * @param threadCount       接收线程数
+     * @param receiveBufferSize 每个channel的内核接收缓冲区大小
+     * @param packetSize        单个报文的最大长度，超过的部分被丢弃
+     */
+    public UdpReceiveEngine(InetSocketAddress address, int threadCount, int receiveBufferSize, int packetSize,
+                            Handler handler) {
+        this.address = address;
+        this.threadCount = threadCount;
+        this.receiveBufferSize = receiveBufferSize;
+        this.packetSize = packetSize;
+        this.handler = handler;
+    }
+
+    //在start()之前设置
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    //在start()之前调用，每个channel都在networkInterface上加入组播组group
+    public void joinGroup(InetAddress group, NetworkInterface networkInterface) {
+        //DatagramChannel.join()必须指定网卡
+        if (networkInterface == null)
+            throw new IllegalArgumentException("加入组播组" + group + "时必须指定网卡");
+        groups.add(group);
+        interfaces.add(networkInterface);
+    }
+
+    //在start()之前设置，发送组播报文的TTL，缺省为1(只在本网段)
+    public void setMulticastTtl(int multicastTtl) {
+        this.multicastTtl = multicastTtl;
+    }
+
+    public synchronized void start() throws IOException {
+        if (running) return;
+        selectors.clear();
+        DatagramChannel first = open(true);
+        //只有在确实支持SO_REUSEPORT时才为每个线程打开一个channel
+        reusePort = SO_REUSEPORT != null && first.supportedOptions().contains(SO_REUSEPORT);
+        channels = new DatagramChannel[reusePort ? threadCount : 1];
+        channels[0] = first;
+        try {
+            for (int i = 1; i < channels.length; i++) channels[i] = open(false);
+        } catch (IOException e) {
+            closeChannels();
+            throw e;
+        }
+        running = true;
+        threads = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            DatagramChannel channel = channels[i % channels.length];
+            //批量模式需要每个线程独占一个channel，不支持SO_REUSEPORT时只用一个线程
+            if (batchSize > 0 && i >= channels.length) break;
+            Runnable worker = batchSize > 0 ? new BatchWorker(channel) : () -> receive(channel);
+            threads[i] = new Thread(worker, "UdpReceiver-" + i);
+            threads[i].start();
+        }
+    }
+
+    //停止接收并关闭所有channel，可以在接收线程中调用
+    public synchronized void stop() {
+        if (!running) return;
+        running = false;
+        closeChannels();
+        synchronized (selectors) {
+            for (Selector selector : selectors) selector.wakeup();
+        }
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    //是否使用了SO_REUSEPORT，为false时所有线程共用一个channel
+    public boolean isReusePort() {
+        return reusePort;
+    }
+
+    //用于主动发送报文的channel，与接收报文的channel绑定在同一端口，客户端看到的来源端口相同
+    public DatagramChannel getChannel() {
+        return channels == null ? null : channels[0];
+    }
+
+    public int getChannelCount() {
+        return channels == null ? 0 : channels.length;
+    }
+
+    public long getReceived() {
+        return received.sum();
+    }
+
+    public long getSent() {
+        return sent.sum();
+    }
+
+    @Override
+    public String toString() {
+        long b = batches.sum();
+        return "Udp engine: received=" + received.sum() + ", sent=" + sent.sum() + ", dropped=" + dropped.sum()
+                + (b > 0 ? ", batches=" + b + ", avgBatch=" + received.sum() / b : "");
+    }
+
+    private DatagramChannel open(boolean first) throws IOException {
+        //IPv4组播组需要用IPv4的channel加入
+        DatagramChannel channel = groups.isEmpty() ? DatagramChannel.open()
+                : DatagramChannel.open(groups.get(0) instanceof Inet6Address ? StandardProtocolFamily.INET6
+                : StandardProtocolFamily.INET);
+        try {
+            channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            if (SO_REUSEPORT != null && channel.supportedOptions().contains(SO_REUSEPORT))
+                channel.setOption(SO_REUSEPORT, true);
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferSize);
+            //内核可能限制缓冲区大小(如Linux的net.core.rmem_max)，实际值可能小于设置值
+            if (first && channel.getOption(StandardSocketOptions.SO_RCVBUF) < receiveBufferSize)
+                System.out.println("Udp接收缓冲区被系统限制为：" + channel.getOption(StandardSocketOptions.SO_RCVBUF));
+            channel.bind(address);
+            for (int i = 0; i < groups.size(); i++) channel.join(groups.get(i), interfaces.get(i));
+            if (!groups.isEmpty()) {
+                channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, interfaces.get(0));
+                channel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, multicastTtl);
+            }
+            return channel;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    //阻塞模式：一次接收一个报文，回复立即发送
+    private void receive(DatagramChannel channel) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(packetSize);
+        Sender sender = (data, target) -> {
+            channel.send(data, target);
+            sent.increment();
+        };
+        while (running) {
+            try {
+                buffer.clear();
+                SocketAddress source = channel.receive(buffer);
+                if (source == null) continue;
+                received.increment();
+                buffer.flip();
+                handler.onPacket(sender, source, buffer);
+            } catch (ClosedChannelException e) {
+                break;
+            } catch (IOException | RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    //批量模式：每次Selector唤醒读出所有已到达的报文，处理完后集中发送回复
+    private class BatchWorker implements Runnable, Sender {
+        private final DatagramChannel channel;
+        //接收缓冲区和回复缓冲区都预先分配，重复使用；回复缓冲区只在发送缓冲区满时使用
+        private final ByteBuffer[] packets = new ByteBuffer[batchSize];
+        private final SocketAddress[] sources = new SocketAddress[batchSize];
+        private final ByteBuffer[] replySlots = new ByteBuffer[batchSize];
+        //待发送的回复，通常指向replySlots，超长的回复指向单独分配的缓冲区
+        private final ByteBuffer[] replies = new ByteBuffer[batchSize];
+        private final SocketAddress[] targets = new SocketAddress[batchSize];
+        private int replyCount;
+        private int replyFlushed;
+
+        BatchWorker(DatagramChannel channel) {
+            this.channel = channel;
+            for (int i = 0; i < batchSize; i++) {
+                packets[i] = ByteBuffer.allocateDirect(packetSize);
+                replySlots[i] = ByteBuffer.allocateDirect(packetSize);
+            }
+        }
+
+        @Override
+        public void run() {
+            try (Selector selector = Selector.open()) {
+                synchronized (selectors) {
+                    selectors.add(selector);
+                }
+                channel.configureBlocking(false);
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                while (running) {
+                    selector.select();
+                    selector.selectedKeys().clear();
+                    if (!running) break;
+                    //队列中还有没发出的回复时先发送，发不完就继续等待可写，暂不接收新报文
+                    if (flush()) {
+                        int n = drain();
+                        if (n > 0) {
+                            batches.increment();
+                            for (int i = 0; i < n; i++) {
+                                try {
+                                    handler.onPacket(this, sources[i], packets[i]);
+                                } catch (IOException | RuntimeException e) {
+                                    if (!channel.isOpen()) break;
+                                    e.printStackTrace();
+                                }
+                                sources[i] = null;
+                            }
+                        }
+                    }
+                    if (key.isValid())
+                        key.interestOps(replyCount == 0 ? SelectionKey.OP_READ : SelectionKey.OP_WRITE);
+                }
+            } catch (ClosedChannelException e) {
+                //stop()关闭了channel
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        //读出所有已到达的报文，最多batchSize个
+        private int drain() throws IOException {
+            int n = 0;
+            while (n < batchSize) {
+                ByteBuffer buffer = packets[n];
+                buffer.clear();
+                SocketAddress source = channel.receive(buffer);
+                if (source == null) break;
+                buffer.flip();
+                sources[n++] = source;
+            }
+            received.add(n);
+            return n;
+        }
+
+        //队列为空时直接发送；发送缓冲区满(send()返回0)或前面还有回复排队时，为保持顺序复制到回复队列，
+        //队列满时丢弃(Udp本身不保证送达)
+        @Override
+        public void send(ByteBuffer data, SocketAddress target) throws IOException {
+            if (flush() && channel.send(data, target) > 0) {
+                sent.increment();
+                return;
+            }
+            if (replyCount == batchSize) {
+                dropped.increment();
+                return;
+            }
+            ByteBuffer reply = replySlots[replyCount];
+            if (data.remaining() > reply.capacity()) reply = ByteBuffer.allocate(data.remaining());
+            reply.clear();
+            reply.put(data).flip();
+            replies[replyCount] = reply;
+            targets[replyCount++] = target;
+        }
+
+        //发送回复队列中的回复，全部发完时返回true
+        private boolean flush() throws IOException {
+            while (replyFlushed < replyCount) {
+                if (channel.send(replies[replyFlushed], targets[replyFlushed]) == 0) return false;
+                replies[replyFlushed] = null;
+                targets[replyFlushed++] = null;
+                sent.increment();
+            }
+            replyCount = 0;
+            replyFlushed = 0;
+            return true;
+        }
+    }
+
+    private void closeChannels() {
+        for (DatagramChannel channel : channels) {
+            if (channel == null) continue;
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> reusePortOption() {
+        try {
+            return (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+}
@@ -4,6 +4,7 @@
  * 2）POST：上传文件，数据格式：multipart/form-data，commons-fileupload框架
  * 3）PUT：上传文件，数据格式：application/octet-stream
  * 4）DELETE：上传文件，数据格式：multipart/form-data,Servlet3.0框架
+ * 5）初始化参数asyncIO=true时，GET下载和PUT上传使用Servlet3.1的非阻塞I/O(ReadListener/WriteListener)
  * <p>
  * <br/>Copyright (C), 2017-2018, Steve Chang
  * <br/>This program is protected by copyright laws.
@@ -15,10 +16,11 @@
  */
 package org.xottys.server.http;
 
-import org.apache.commons.fileupload.FileItem;
+import org.apache.commons.fileupload.FileItemIterator;
+import org.apache.commons.fileupload.FileItemStream;
 import org.apache.commons.fileupload.FileUploadException;
-import org.apache.commons.fileupload.disk.DiskFileItemFactory;
 import org.apache.commons.fileupload.servlet.ServletFileUpload;
+import org.apache.commons.fileupload.util.Streams;
 
 import javax.servlet.ServletException;
 import javax.servlet.ServletInputStream;
@@ -31,18 +33,45 @@ import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.Part;
 
 import java.io.*;
+import java.net.URLDecoder;
 import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.zip.Checksum;
 
-@WebServlet(name = "UpDownServletDemo", urlPatterns = ("/updown"))
+@WebServlet(name = "UpDownServletDemo", urlPatterns = ("/updown"), asyncSupported = true)
 @MultipartConfig
 public class UpDownServletDemo extends HttpServlet {
+    //分块上传的缺省块大小
+    private static final int DEFAULT_CHUNK_SIZE = 8 * 1024 * 1024;
+
     // 服务器返回信息
     private String message;
 
     private StringBuilder msg;
     private String savePath, repositoryPath;
     private File file;
+    //下载引擎
+    private FileTransfer fileTransfer;
+    //文件元数据缓存，用于ETag/Last-Modified校验
+    private FileMetaCache fileMetaCache;
+    //热点文件内容缓存：总容量64M，单个文件不超过4M
+    private HotFileCache hotFileCache;
+    //上传引擎
+    private FileReceiver fileReceiver;
+    //分块上传会话
+    private ChunkUploadStore chunkUploadStore;
+    //预压缩的文件副本
+    private CompressedVariants compressedVariants;
+    //非阻塞I/O上传下载
+    private AsyncFileTransfer asyncFileTransfer;
+    //是否使用非阻塞I/O方式上传下载，可通过初始化参数asyncIO=true打开
+    private boolean asyncIO;
+    //PUT上传时是否按Content-Length预先分配文件空间，可通过初始化参数preallocate=false关闭
+    private boolean preallocate;
 
     //初始化时将服务器文件和路径确定下来
     @Override
@@ -50,8 +79,12 @@ public class UpDownServletDemo extends HttpServlet {
         super.init();
         //设置上传文件的保存目录
         savePath = this.getServletContext().getRealPath("/upload");
-        //设置上传文件的临时保存目录
+        //设置上传文件的临时保存目录，上传中的文件先写在这里，完成后原子重命名到保存目录
         repositoryPath = this.getServletContext().getRealPath("/upload/temp");
+        fileTransfer = new FileTransfer();
+        //最多缓存10000个文件的元数据
+        fileMetaCache = new FileMetaCache(new File(savePath), 10000);
+        hotFileCache = new HotFileCache(64 * 1024 * 1024, 4 * 1024 * 1024);
 
         // 判断上传文件的保存目录是否存在
         file = new File(savePath);
@@ -68,78 +101,243 @@ public class UpDownServletDemo extends HttpServlet {
             // 创建目录
             file.mkdir();
         }
+        fileReceiver = new FileReceiver(new File(repositoryPath));
+        //分块上传会话超过chunkIdleTimeout秒没有写入时被清理，缺省24小时
+        String chunkIdleTimeout = getInitParameter("chunkIdleTimeout");
+        chunkUploadStore = new ChunkUploadStore(new File(repositoryPath), fileReceiver,
+                (chunkIdleTimeout == null ? 24 * 3600 : Long.parseLong(chunkIdleTimeout)) * 1000);
+        preallocate = !"false".equals(getInitParameter("preallocate"));
+        //异步上传下载的超时时间，可通过初始化参数asyncTimeout(秒)设置，缺省1小时
+        String asyncTimeout = getInitParameter("asyncTimeout");
+        asyncFileTransfer = new AsyncFileTransfer(new File(repositoryPath),
+                (asyncTimeout == null ? 3600 : Long.parseLong(asyncTimeout)) * 1000);
+        compressedVariants = new CompressedVariants(new File(repositoryPath, "compressed"));
+        asyncIO = "true".equals(getInitParameter("asyncIO"));
     }
 
     //下载文件，数据格式：application/octet-stream
     @Override
     public void doGet(HttpServletRequest request, HttpServletResponse response)
             throws ServletException, IOException {
+        //带stats参数时返回热点文件缓存的命中、淘汰等统计信息
+        if (request.getParameter("stats") != null) {
+            outputMsg(hotFileCache.toString(), response);
+            return;
+        }
+        //带uploadId参数时返回分块上传会话中尚未收到的块，用于断点续传
+        if (request.getParameter("uploadId") != null) {
+            chunkStatus(request.getParameter("uploadId"), response);
+            return;
+        }
         //从客户端获取要下载的文件名
         String fileName = request.getParameter("filename");
+        String message;
         response.setCharacterEncoding("UTF-8");
-        file = new File(savePath + "/" + fileName);
-        if (!file.exists()) {
+        //从缓存中获取文件长度、修改时间和ETag，缓存命中时不需要访问磁盘
+        FileMetaCache.FileMeta meta = fileName == null ? null : fileMetaCache.get(fileName);
+        if (meta == null) {
             message = "文件不存在";
         } else {
             try {
                 message = "下载成功";
-                //将下载的文件防放入流中
-                FileInputStream in = new FileInputStream(savePath + "/" + fileName);
+                File file = meta.getFile();
+                long length = meta.getLength();
+                //强ETag由文件长度和修改时间生成，文件被覆盖后ETag随之改变，客户端据此判断能否续传
+                long lastModified = meta.getLastModified();
+                String eTag = meta.getETag();
+
+                //文本类文件按Accept-Encoding协商压缩格式，有Range请求时只返回原始内容
+                String encoding = null;
+                if (length >= CompressedVariants.MIN_COMPRESS_LENGTH
+                        && CompressedVariants.isCompressible(fileName, getServletContext().getMimeType(fileName))) {
+                    response.setHeader("Vary", "Accept-Encoding");
+                    if (request.getHeader("Range") == null)
+                        encoding = CompressedVariants.negotiate(request.getHeader("Accept-Encoding"));
+                }
+
                 //设置response的各项参数
-                response.setContentType("application/octet-stream;charset=UTF-8");
                 response.addHeader("content-disposition", "attachment;filename=" + fileName);
-                response.addHeader("Content-Length", "" + file.length());
+                response.setHeader("Accept-Ranges", "bytes");
+                response.setHeader("ETag", meta.getETag(encoding));
+                response.setDateHeader("Last-Modified", lastModified);
                 response.addHeader("result", URLEncoder.encode(message, "UTF-8"));
 
-                //准备reponse输出流
-                ServletOutputStream out = response.getOutputStream();
-
-                byte[] buffer = new byte[in.available()];
-
-                //一次性将服务器文件读到缓冲区，然后写到输出流中发给客户端
-                if (in.read(buffer) == file.length()) {
-            /*另一种常用读写流的方法
-            byte[] buffer = new byte[512];
-            int byteSend;
-            while ((byteSend = in.read(buffer))!= -1){
-                out.write(buffer,0,byteSend);
-            }*/
-
-                    //将读入的文件流输出到客户端
-                    out.write(buffer);
-                    out.flush();
-                    out.close();
+                //客户端已有最新版本时返回304，不发送文件内容
+                if (notModified(request, meta, meta.getETag(encoding))) {
+                    response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                    System.out.println("文件未修改");
+                    return;
+                }
 
-                    in.close();
+                if (encoding != null) {
+                    response.setContentType("application/octet-stream;charset=UTF-8");
+                    response.setHeader("Content-Encoding", encoding);
+                    //已有压缩副本时直接发送副本，否则本次边读边压缩，同时在后台生成副本
+                    CompressedVariants.Variant variant = compressedVariants.get(fileName, meta, encoding);
+                    if (variant != null) {
+                        response.setContentLengthLong(variant.getLength());
+                        if (sendPart(request, response, variant.getFile(), null, 0, variant.getLength()) != variant.getLength())
+                            message = "下载失败";
+                    } else
+                        compressedVariants.compress(meta, encoding, response.getOutputStream());
+                    System.out.println(message + "(" + encoding + ")");
+                    return;
+                }
 
-                } else
+                //解析Range请求头，If-Range与当前文件不一致时忽略Range，返回整个文件
+                List<HttpRange> ranges = null;
+                String rangeHeader = request.getHeader("Range");
+                if (rangeHeader != null && ifRangeMatches(request, eTag, lastModified))
+                    ranges = HttpRange.parse(rangeHeader, length);
+
+                //容器不支持sendfile时，热点小文件直接从堆外缓存发送；返回416时不需要文件内容，不加载
+                boolean unsatisfiable = ranges != null && ranges.isEmpty();
+                ByteBuffer cached = unsatisfiable || fileTransfer.canSendfile(request) ? null : hotFileCache.get(meta);
+
+                if (ranges == null) {
+                    response.setContentType("application/octet-stream;charset=UTF-8");
+                    response.setContentLengthLong(length);
+                    //流式发送文件：sendfile/transferTo优先，否则用固定大小的池化缓冲区循环读写，不会把整个文件读入堆中
+                    if (sendPart(request, response, file, cached, 0, length) != length)
+                        message = "下载失败";
+                } else if (ranges.isEmpty()) {
+                    //请求的范围全部超出文件长度
+                    response.setHeader("Content-Range", "bytes */" + length);
+                    response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
                     message = "下载失败";
+                } else if (ranges.size() == 1) {
+                    //单段：直接从文件的指定位置开始发送，不读取前面的内容
+                    HttpRange range = ranges.get(0);
+                    response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                    response.setContentType("application/octet-stream;charset=UTF-8");
+                    response.setHeader("Content-Range", range.toContentRange(length));
+                    response.setContentLengthLong(range.getLength());
+                    if (sendPart(request, response, file, cached, range.getStart(), range.getLength()) != range.getLength())
+                        message = "下载失败";
+                } else {
+                    //多段：multipart/byteranges
+                    response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                    if (!sendRanges(response, file, cached, ranges, length))
+                        message = "下载失败";
+                }
+            } catch (NoSuchFileException e) {
+                //文件已在服务器外部被删除，清除缓存
+                invalidate(fileName);
+                message = "文件不存在";
             } catch (IOException e) {
                 e.printStackTrace();
                 message = "下载失败";
             }
         }
 
-        //输出下载结果
+        //输出下载结果，异步下载时response已交给WriteListener，不能再修改
         // outputMsg(message, response);
-        response.addHeader("result", URLEncoder.encode(message, "UTF-8"));
+        if (!request.isAsyncStarted())
+            response.addHeader("result", URLEncoder.encode(message, "UTF-8"));
         System.out.println(message);
     }
 
+    //发送文件的一段，有缓存内容时从内存发送
+    private long sendPart(HttpServletRequest request, HttpServletResponse response, File file, ByteBuffer cached,
+                          long position, long count) throws IOException {
+        //非阻塞方式：当前容器线程立即返回，之后只在socket可写时才发送数据；sendfile本身不占用线程，不需要异步
+        if (asyncIO && request.isAsyncSupported() && !fileTransfer.canSendfile(request)) {
+            //文件在startAsync()之前打开，打不开时与同步方式一样抛出异常
+            asyncFileTransfer.download(request, response, file, cached, position, count);
+            return count;
+        }
+        if (cached != null)
+            return fileTransfer.send(cached, response.getOutputStream(), position, count);
+        return fileTransfer.send(request, response, file, position, count);
+    }
+
+    //用multipart/byteranges格式发送多段内容，所有段共用一个FileChannel或缓存内容
+    private boolean sendRanges(HttpServletResponse response, File file, ByteBuffer cached, List<HttpRange> ranges,
+                               long length) throws IOException {
+        String boundary = "UPDOWN_" + Long.toHexString(System.nanoTime());
+        byte[][] heads = new byte[ranges.size()][];
+        byte[] tail = ("\r\n--" + boundary + "--\r\n").getBytes("ISO-8859-1");
+        long contentLength = tail.length;
+        for (int i = 0; i < ranges.size(); i++) {
+            HttpRange range = ranges.get(i);
+            heads[i] = ("\r\n--" + boundary + "\r\n"
+                    + "Content-Type: application/octet-stream\r\n"
+                    + "Content-Range: " + range.toContentRange(length) + "\r\n\r\n").getBytes("ISO-8859-1");
+            contentLength += heads[i].length + range.getLength();
+        }
+        response.setContentType("multipart/byteranges; boundary=" + boundary);
+        response.setContentLengthLong(contentLength);
+
+        ServletOutputStream out = response.getOutputStream();
+        if (cached != null) {
+            for (int i = 0; i < ranges.size(); i++) {
+                HttpRange range = ranges.get(i);
+                out.write(heads[i]);
+                fileTransfer.send(cached, out, range.getStart(), range.getLength());
+            }
+            out.write(tail);
+            return true;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            for (int i = 0; i < ranges.size(); i++) {
+                HttpRange range = ranges.get(i);
+                out.write(heads[i]);
+                if (fileTransfer.send(channel, out, range.getStart(), range.getLength()) != range.getLength())
+                    return false;
+            }
+        }
+        out.write(tail);
+        return true;
+    }
+
+    //判断If-Range是否与当前文件一致
+    private boolean ifRangeMatches(HttpServletRequest request, String eTag, long lastModified) {
+        String ifRange = request.getHeader("If-Range");
+        long ifRangeDate = -1;
+        if (ifRange != null && !ifRange.trim().startsWith("\"") && !ifRange.trim().startsWith("W/")) {
+            try {
+                ifRangeDate = request.getDateHeader("If-Range");
+            } catch (IllegalArgumentException e) {
+                return false;
+            }
+        }
+        return HttpRange.ifRangeMatches(ifRange, eTag, lastModified, ifRangeDate);
+    }
+
+    //文件被覆盖或删除后清除相关缓存
+    private void invalidate(String fileName) {
+        fileMetaCache.invalidate(fileName);
+        hotFileCache.invalidate(fileMetaCache.key(fileName));
+        compressedVariants.invalidate(fileName);
+    }
+
+    //条件请求：If-None-Match优先，没有时才判断If-Modified-Since
+    private boolean notModified(HttpServletRequest request, FileMetaCache.FileMeta meta, String eTag) {
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch != null) return FileMetaCache.FileMeta.matchesNoneMatch(ifNoneMatch, eTag);
+        try {
+            return meta.notModifiedSince(request.getDateHeader("If-Modified-Since"));
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
     //上传文件一：multipart/form-data，使用commons-fileupload框架，文件的key不能为空
     @Override
     public void doPost(HttpServletRequest request, HttpServletResponse response)
             throws ServletException, IOException {
+        //分块上传的建立、提交和放弃，参数只从URL中获取，不能触发对multipart body的解析
+        String action = queryParameter(request, "action");
+        if (action != null) {
+            chunkAction(action, request, response);
+            return;
+        }
         msg = new StringBuilder();
 
-        DiskFileItemFactory factory = new DiskFileItemFactory();
-        ServletFileUpload upload = new ServletFileUpload(factory);
-        //上传的文件最大不超过500M Bytes,默认临界值为10kB
+        //使用流式API，不再需要DiskFileItemFactory把文件先暂存到临时目录
+        ServletFileUpload upload = new ServletFileUpload();
+        //上传的文件最大不超过500M Bytes
         upload.setSizeMax(500 * 1024 * 1024);
-        //如果文件查过50M Bytes则用临时文件暂存
-        factory.setSizeThreshold(50 * 1024);
-        //设置临时文件存储位置
-        factory.setRepository(new File(repositoryPath));
 
         // 判断提交上来的数据格式是否是multipart/form-data
         if (!ServletFileUpload.isMultipartContent(request)) {
@@ -147,21 +345,25 @@ public class UpDownServletDemo extends HttpServlet {
             return;
         }
 
-        //使用ServletFileUpload解析器解析上传数据，解析结果返回的是一个List<FileItem>集合，每一个FileItem对应一个参数输入
+        //使用ServletFileUpload的流式解析器，边解析边处理，每一个FileItemStream对应一个参数输入，不在内存中保留整个请求
         try {
-            List<FileItem> list = upload.parseRequest(request);
-            for (FileItem item : list) {
-                // 如果fileitem中封装的是普通输入项的数据
+            FileItemIterator iterator = upload.getItemIterator(request);
+            while (iterator.hasNext()) {
+                FileItemStream item = iterator.next();
+                // 如果FileItemStream中封装的是普通输入项的数据
                 if (item.isFormField()) {
                     //获取Key
                     String name = item.getFieldName();
                     //获取Value
-                    String value = item.getString("UTF-8");
+                    String value;
+                    try (InputStream in = item.openStream()) {
+                        value = Streams.asString(in, "UTF-8");
+                    }
 
                     msg.append(name + "=" + value + "\n");
 
                 }
-                // 如果fileitem中封装的是上传文件
+                // 如果FileItemStream中封装的是上传文件
                 else {
                     //得到文件名
                     String filename = item.getName();
@@ -175,26 +377,18 @@ public class UpDownServletDemo extends HttpServlet {
 
                     File uploadedFile = new File(savePath + "/" + filename);
 
-                    //File-Upload方式直接写文件
-                    try {
-                        item.write(uploadedFile);
-                    } catch (Exception e) {
-                        e.printStackTrace();
+                    //边解析边通过FileChannel写入，写完后原子重命名为目标文件，整个文件只写一次磁盘
+                    try (InputStream in = item.openStream()) {
+                        fileReceiver.receive(in, uploadedFile);
                     }
-                    /*也可以用stream方式输出文件
-                    InputStream in = item.getInputStream();
-                    byte buffer[] = new byte[1024];
-                    FileOutputStream output = new FileOutputStream(savePath + "/" + filename);
-                    Streams.copy(in, output, true);
-                    in.close();
-                    output.close();
-                    */
+                    //文件已被覆盖，清除其元数据和内容缓存
+                    invalidate(filename);
                     msg.append(filename + "上传成功");
                 }
             }
 //         message = msg.toString();
             message = "上传成功";
-        } catch (FileUploadException e) {
+        } catch (FileUploadException | IOException e) {
             message = "上传失败";
             e.printStackTrace();
         }
@@ -207,6 +401,12 @@ public class UpDownServletDemo extends HttpServlet {
     @Override
     public void doPut(HttpServletRequest request, HttpServletResponse response)
             throws ServletException, IOException {
+        //分块上传：PUT /updown?uploadId=xxx&chunk=N，body为第N块的内容
+        String uploadId = queryParameter(request, "uploadId");
+        if (uploadId != null) {
+            putChunk(uploadId, queryParameter(request, "chunk"), request, response);
+            return;
+        }
         //从Header中提取文件名
         String fileName = request.getHeader("filename");
         if (fileName == null) {
@@ -217,28 +417,44 @@ public class UpDownServletDemo extends HttpServlet {
                 fileName = String.valueOf((new Date()).getTime());
             }
         }
+        //客户端可以在Header中提供CRC32C或CRC32校验和(十六进制)，上传时边复制边校验
+        Checksum checksum = null;
+        long expectedChecksum = 0;
+        String algorithm = request.getHeader("X-Checksum-CRC32C") != null ? "CRC32C"
+                : request.getHeader("X-Checksum-CRC32") != null ? "CRC32" : null;
         try {
-            //定义要输出的服务器的文件流
-            FileOutputStream fis = new FileOutputStream(savePath + "/" + fileName);
-
-            //读取客户端的输入字节流，然后写到服务器文件中去
-            ServletInputStream in = request.getInputStream();
+            if (algorithm != null) {
+                checksum = FileReceiver.newChecksum(algorithm);
+                if (checksum == null) throw new IOException("不支持的校验算法：" + algorithm);
+                expectedChecksum = Long.parseLong(request.getHeader("X-Checksum-" + algorithm).trim(), 16);
+            }
 
-            byte[] buffer = new byte[1024];
-            int bytesRead;
-            //边读（客户端的字节流）边写（服务器的文件流）
-            while ((bytesRead = in.read(buffer, 0, 1024)) >= 0) {
-                fis.write(buffer, 0, bytesRead);
+            //非阻塞方式：只在数据到达时才读取，接收完成后在回调中返回结果
+            if (asyncIO && request.isAsyncSupported()) {
+                final String name = fileName;
+                asyncFileTransfer.upload(request, new File(savePath + "/" + fileName), request.getContentLengthLong(),
+                        checksum, expectedChecksum, error -> {
+                            invalidate(name);
+                            String result = error == null ? "上传成功" : "上传失败";
+                            System.out.println("doPut(application/octet-stream,async)--" + result);
+                            outputMsg(result, response);
+                        });
+                return;
             }
 
-            fis.close();
+            //读取客户端的输入字节流，边读边通过FileChannel写到服务器文件中去，已知长度时预先分配文件空间
+            ServletInputStream in = request.getInputStream();
+            fileReceiver.receive(in, new File(savePath + "/" + fileName),
+                    preallocate ? request.getContentLengthLong() : -1, checksum, expectedChecksum);
             in.close();
             message = "上传成功";
-        } catch (IOException e) {
+        } catch (IOException | NumberFormatException e) {
             e.printStackTrace();
             message = "上传失败";
 
         }
+        //无论成功与否文件都可能已被改写，清除其元数据和内容缓存
+        invalidate(fileName);
         System.out.println("doPut(application/octet-stream)--"+message);
         //输出文件上传结果到客户端
         outputMsg(message, response);
@@ -262,6 +478,7 @@ public class UpDownServletDemo extends HttpServlet {
                     String fileName = getFileName(header);
                     //把文件写到指定路径
                     part.write(savePath + File.separator + fileName);
+                    invalidate(fileName);
                     msg.append(fileName + "上传成功\n");
                 }
                 //属于字段，没有filename="yyy"这部分
@@ -281,9 +498,116 @@ public class UpDownServletDemo extends HttpServlet {
 
     @Override
     public void destroy() {
+        chunkUploadStore.close();
+        compressedVariants.shutdown();
+        hotFileCache.clear();
+        fileMetaCache.clear();
         super.destroy();
     }
 
+    /*分块上传：
+      1）POST /updown?action=initiate&filename=xxx&size=文件长度[&chunkSize=块大小]，返回uploadId、chunkSize和chunkCount
+      2）PUT /updown?uploadId=xxx&chunk=N，body为第N块，写到文件的N*chunkSize位置，多块可以并行、乱序上传
+      3）GET /updown?uploadId=xxx，返回尚未收到的块号，中断后据此续传
+      4）POST /updown?action=commit&uploadId=xxx，全部块收到后生成目标文件；action=abort放弃上传*/
+    private void chunkAction(String action, HttpServletRequest request, HttpServletResponse response) {
+        try {
+            if ("initiate".equals(action)) {
+                String fileName = queryParameter(request, "filename");
+                String size = queryParameter(request, "size");
+                String chunkSize = queryParameter(request, "chunkSize");
+                if (fileName == null || size == null) {
+                    outputMsg("参数错误：filename/size为null", response);
+                    return;
+                }
+                fileName = fileName.substring(fileName.lastIndexOf("/") + 1);
+                ChunkUploadStore.Session session = chunkUploadStore.create(fileName, Long.parseLong(size),
+                        chunkSize == null ? DEFAULT_CHUNK_SIZE : Integer.parseInt(chunkSize));
+                outputMsg("uploadId=" + session.getId() + "\nchunkSize=" + session.getChunkSize()
+                        + "\nchunkCount=" + session.getChunkCount(), response);
+                return;
+            }
+
+            ChunkUploadStore.Session session = chunkUploadStore.get(queryParameter(request, "uploadId"));
+            if (session == null) {
+                response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+                outputMsg("上传会话不存在", response);
+            } else if ("commit".equals(action)) {
+                session.commit(new File(savePath + "/" + session.getFileName()));
+                invalidate(session.getFileName());
+                outputMsg("上传成功", response);
+            } else if ("abort".equals(action)) {
+                session.abort();
+                outputMsg("上传已取消", response);
+            } else {
+                response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+                outputMsg("参数错误：未知的action", response);
+            }
+        } catch (IOException | NumberFormatException e) {
+            e.printStackTrace();
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            outputMsg("上传失败：" + e.getMessage(), response);
+        }
+    }
+
+    //接收一块数据
+    private void putChunk(String uploadId, String chunk, HttpServletRequest request, HttpServletResponse response) {
+        try {
+            ChunkUploadStore.Session session = chunkUploadStore.get(uploadId);
+            if (session == null) {
+                response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+                outputMsg("上传会话不存在", response);
+                return;
+            }
+            if (chunk == null) {
+                response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+                outputMsg("参数错误：chunk为null", response);
+                return;
+            }
+            session.writeChunk(Integer.parseInt(chunk), request.getInputStream());
+            outputMsg("上传成功", response);
+        } catch (IOException | NumberFormatException e) {
+            e.printStackTrace();
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            outputMsg("上传失败：" + e.getMessage(), response);
+        }
+    }
+
+    //返回尚未收到的块号
+    private void chunkStatus(String uploadId, HttpServletResponse response) throws IOException {
+        ChunkUploadStore.Session session = chunkUploadStore.get(uploadId);
+        if (session == null) {
+            response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+            outputMsg("上传会话不存在", response);
+            return;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int index : session.getMissingChunks()) {
+            if (sb.length() > 0) sb.append(",");
+            sb.append(index);
+        }
+        outputMsg("chunkSize=" + session.getChunkSize() + "\nchunkCount=" + session.getChunkCount()
+                + "\nmissing=" + sb, response);
+    }
+
+    //只从URL的查询字符串中获取参数，不会像getParameter那样读取和解析请求body
+    private String queryParameter(HttpServletRequest request, String name) {
+        String query = request.getQueryString();
+        if (query == null) return null;
+        for (String pair : query.split("&")) {
+            int eq = pair.indexOf('=');
+            String key = eq < 0 ? pair : pair.substring(0, eq);
+            if (key.equals(name)) {
+                try {
+                    return eq < 0 ? "" : URLDecoder.decode(pair.substring(eq + 1), "UTF-8");
+                } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+                    return null;
+                }
+            }
+        }
+        return null;
+    }
+
     //输出结果到客户端
     private void outputMsg(String msg, HttpServletResponse response) {
         response.setHeader("Content-type", "text/plain;charset=UTF-8");
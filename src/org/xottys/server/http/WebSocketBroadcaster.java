@@ -0,0 +1,309 @@
+/**
+ * 本类是WebSocketServerDemo的异步群发引擎，群发时发送方不再等待每个客户端写完：
+ * 1）broadcast()只把群发任务交给专用线程池就返回，由线程池把消息放入每个客户端的发送队列
+ * 2）每个客户端同一时刻只有一条消息在用getAsyncRemote()发送，发送完成的回调中再发送队列中的下一条，
+ * 慢客户端只会让自己的队列变长，不影响其他客户端
+ * 3）发送队列有上限，超过时按OverflowPolicy处理：
+ * --DROP_OLDEST：丢弃最早的一条消息
+ * --COALESCE：丢弃队列中所有未发送的消息，只保留最新的一条，适合状态类消息
+ * --DISCONNECT：关闭该客户端的连接
+ * 4）群发的消息先生成一个Frame，所有客户端共用同一个实例：文本只拼接一次，UTF-8编码也只做一次并保存为只读ByteBuffer，
+ * 发送时每个客户端只创建该缓冲区的duplicate()，不复制内容。文本帧由容器编码，注册时选择binaryText的客户端
+ * 直接收到编码好的UTF-8二进制帧，整个群发只编码一次
+ * 5）大消息用Frame.stream()放入发送队列，轮到它时在单独的分段发送线程池中用getBasicRemote()分段发送，
+ * 该线程池与群发线程池分开且线程数有限，慢客户端的阻塞写不会占用群发线程，
+ * 发送期间该客户端没有其他消息在发送，发送完成后继续发送队列中的下一条；
+ * 没有发送就被丢弃(队列溢出、连接关闭、客户端未注册等)的消息会调用其onDiscard，用于删除临时文件等清理工作
+ * <p>
+ * <br/>Copyright (C), 2017-2018, Steve Chang
+ * <br/>This program is protected by copyright laws.
+ * <br/>Program Name:WebSocketBroadcaster
+ * <br/>Date:May，2018
+ *
+ * @author xottys@163.com
+ * @version 1.0
+ */
+package org.xottys.server.http;
+
+import javax.websocket.CloseReason;
+import javax.websocket.RemoteEndpoint;
+import javax.websocket.SendHandler;
+import javax.websocket.SendResult;
+import javax.websocket.Session;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+public class WebSocketBroadcaster {
+    //Session.getUserProperties()中保存发送队列的键
+    private static final String OUTBOUND_KEY = WebSocketBroadcaster.class.getName();
+
+    public enum OverflowPolicy {
+        DROP_OLDEST, COALESCE, DISCONNECT
+    }
+
+    private final int queueCapacity;
+    private final OverflowPolicy policy;
+    private final ExecutorService executor;
+    //分段发送大消息的线程池，超过线程数的分段发送排队等待
+    private final ExecutorService streamExecutor;
+
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder disconnected = new LongAdder();
+
+    public WebSocketBroadcaster(int queueCapacity, OverflowPolicy policy, int threads) {
+        this(queueCapacity, policy, threads, threads);
+    }
+
+    //streamThreads为同时分段发送的最大数量
+    public WebSocketBroadcaster(int queueCapacity, OverflowPolicy policy, int threads, int streamThreads) {
+        this.queueCapacity = queueCapacity;
+        this.policy = policy;
+        this.executor = newExecutor("WebSocketBroadcaster-", threads);
+        this.streamExecutor = newExecutor("WebSocketStreamer-", streamThreads);
+    }
+
+    private static ExecutorService newExecutor(String name, int threads) {
+        AtomicInteger counter = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, name + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    //连接建立后调用，为其创建发送队列；binaryText为true时文本消息以UTF-8二进制帧发送
+    public void register(Session session, boolean binaryText) {
+        session.getUserProperties().put(OUTBOUND_KEY, new Outbound(session, binaryText));
+    }
+
+    //连接关闭后调用，丢弃未发送的消息
+    public void unregister(Session session) {
+        Outbound outbound = (Outbound) session.getUserProperties().remove(OUTBOUND_KEY);
+        if (outbound != null) outbound.clear();
+    }
+
+    //在线程池中把frame放入每个客户端的发送队列，立即返回
+    public void broadcast(Iterable<Session> sessions, Frame frame) {
+        executor.execute(() -> {
+            for (Session session : sessions) send(session, frame);
+        });
+    }
+
+    //把frame放入一个客户端的发送队列，可以在任何线程中调用
+    public void send(Session session, Frame frame) {
+        Outbound outbound = (Outbound) session.getUserProperties().get(OUTBOUND_KEY);
+        if (outbound != null) outbound.offer(frame);
+        else frame.discard();
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+        streamExecutor.shutdownNow();
+    }
+
+    @Override
+    public String toString() {
+        return "WebSocket broadcaster: sent=" + sent.sum() + ", dropped=" + dropped.sum()
+                + ", disconnected=" + disconnected.sum() + ", policy=" + policy;
+    }
+
+    //分段发送一条大消息，如remote.sendBinary(part, last)
+    public interface Streamer {
+        void stream(RemoteEndpoint.Basic remote) throws IOException;
+    }
+
+    //群发的一条消息，创建后不再改变，所有客户端共用
+    public static class Frame {
+        private final String text;
+        private final ByteBuffer payload;
+        private final Streamer streamer;
+        private final Runnable onDiscard;
+
+        private Frame(String text, ByteBuffer payload, Streamer streamer, Runnable onDiscard) {
+            this.text = text;
+            this.payload = payload;
+            this.streamer = streamer;
+            this.onDiscard = onDiscard;
+        }
+
+        //文本消息，同时编码一次UTF-8
+        public static Frame text(String text) {
+            return new Frame(text, ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer(), null, null);
+        }
+
+        //二进制消息，共用data的内容，调用后不能再修改data
+        public static Frame binary(ByteBuffer data) {
+            return new Frame(null, data.asReadOnlyBuffer(), null, null);
+        }
+
+        /**
+         * 分段发送的大消息，只能用send()发给一个客户端，streamer在线程池中调用，占用一个线程直到发送完成
+         * @param onDiscard 消息没有发送就被丢弃时调用，streamer已经开始运行时不再调用
+         */
+        public static Frame stream(Streamer streamer, Runnable onDiscard) {
+            return new Frame(null, null, streamer, onDiscard);
+        }
+
+        public boolean isText() {
+            return text != null;
+        }
+
+        public String getText() {
+            return text;
+        }
+
+        //内容的只读视图，每次调用返回新的position，不复制内容
+        public ByteBuffer getPayload() {
+            return payload.duplicate();
+        }
+
+        //消息被丢弃，不会再发送
+        void discard() {
+            if (onDiscard == null) return;
+            try {
+                onDiscard.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+
+        //分段发送的消息返回-1
+        public int getLength() {
+            return payload == null ? -1 : payload.remaining();
+        }
+    }
+
+    //一个客户端的发送队列
+    private class Outbound implements SendHandler {
+        private final Session session;
+        private final boolean binaryText;
+        private final ArrayDeque<Frame> queue = new ArrayDeque<>();
+        //是否有消息正在异步发送
+        private boolean sending;
+        private boolean closed;
+
+        Outbound(Session session, boolean binaryText) {
+            this.session = session;
+            this.binaryText = binaryText;
+        }
+
+        void offer(Frame message) {
+            boolean disconnect = false;
+            //被丢弃的消息，在锁外调用其onDiscard
+            List<Frame> discarded = null;
+            synchronized (this) {
+                if (closed) {
+                    discarded = Collections.singletonList(message);
+                } else if (!sending) {
+                    sending = true;
+                } else if (queue.size() < queueCapacity) {
+                    queue.add(message);
+                    return;
+                } else {
+                    switch (policy) {
+                        case DROP_OLDEST:
+                            discarded = Collections.singletonList(queue.poll());
+                            dropped.increment();
+                            queue.add(message);
+                            break;
+                        case COALESCE:
+                            dropped.add(queue.size());
+                            discarded = new ArrayList<>(queue);
+                            queue.clear();
+                            queue.add(message);
+                            break;
+                        default:
+                            closed = true;
+                            dropped.add(queue.size() + 1);
+                            discarded = new ArrayList<>(queue);
+                            discarded.add(message);
+                            queue.clear();
+                            disconnect = true;
+                    }
+                }
+            }
+            if (discarded != null) {
+                for (Frame frame : discarded) frame.discard();
+                if (disconnect) disconnect();
+                return;
+            }
+            write(message);
+        }
+
+        void clear() {
+            List<Frame> discarded;
+            synchronized (this) {
+                closed = true;
+                discarded = new ArrayList<>(queue);
+                queue.clear();
+            }
+            for (Frame frame : discarded) frame.discard();
+        }
+
+        //上一条消息发送完成，继续发送队列中的下一条
+        @Override
+        public void onResult(SendResult result) {
+            if (result.isOK()) sent.increment();
+            else dropped.increment();
+            Frame next;
+            synchronized (this) {
+                next = closed ? null : queue.poll();
+                if (next == null) {
+                    sending = false;
+                    return;
+                }
+            }
+            write(next);
+        }
+
+        private void write(Frame frame) {
+            try {
+                if (frame.streamer != null)
+                    stream(frame.streamer);
+                else if (frame.isText() && !binaryText)
+                    session.getAsyncRemote().sendText(frame.getText(), this);
+                else
+                    session.getAsyncRemote().sendBinary(frame.getPayload(), this);
+            } catch (RuntimeException e) {
+                //连接已关闭等情况
+                clear();
+                dropped.increment();
+                frame.discard();
+            }
+        }
+
+        //在分段发送线程池中同步分段发送，完成后与异步发送一样调用onResult()
+        private void stream(Streamer streamer) {
+            streamExecutor.execute(() -> {
+                SendResult result;
+                try {
+                    streamer.stream(session.getBasicRemote());
+                    result = new SendResult();
+                } catch (Exception e) {
+                    result = new SendResult(e);
+                }
+                onResult(result);
+            });
+        }
+
+        private void disconnect() {
+            disconnected.increment();
+            System.out.println("WebSocket客户端接收太慢，关闭连接：" + session.getId());
+            try {
+                session.close(new CloseReason(CloseReason.CloseCodes.TRY_AGAIN_LATER, "too slow"));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,22 @@
+/**
+ * 本例是WebSocketServerDemo的房间入口，客户端通过/websocket/{room}连接：
+ * 1）一个@ServerEndpoint只能有一个URI，所以用子类声明带房间名的URI，处理方法全部继承自WebSocketServerDemo
+ * 2）连接建立时自动订阅该房间，发送的普通消息只发布给同一房间的客户端，也可以用subscribe/unsubscribe/publish命令订阅其他主题
+ *
+ * <p>
+ * <br/>Copyright (C), 2017-2018, Steve Chang
+ * <br/>This program is protected by copyright laws.
+ * <br/>Program Name:WebSocketRoomDemo
+ * <br/>Date:May，2018
+ *
+ * @author xottys@163.com
+ * @version 1.0
+ */
+package org.xottys.server.http;
+
+import javax.websocket.server.ServerEndpoint;
+
+//房间名由Session.getPathParameters()中的room取得
+@ServerEndpoint("/websocket/{room}")
+public class WebSocketRoomDemo extends WebSocketServerDemo {
+}
@@ -7,6 +7,21 @@
  * 5）自定义对象处理时需要提供一个编码/解码器类，该类需实现相关接口：
  * Encoder.Text/Encoder.Binary和Decoder.Text/Decoder.Binary，并用注解声明这个编码/解码器,例如：
  * @ServerEndpoint(value = "/chat/{sessionId}",encoders = MyCodec.class,decoders = MyCodec.class)
+ * 6）群发由WebSocketBroadcaster在专用线程池中用getAsyncRemote()异步完成，每个客户端有自己的有界发送队列，
+ * 慢客户端不会拖慢发送方和其他客户端；群发内容只生成和编码一次，所有客户端共用，
+ * 连接时带上参数format=binary的客户端以UTF-8二进制帧接收文本消息
+ * 7）支持按主题(房间)订阅，由WebSocketTopics保存主题到订阅者的索引，发布时只发送给订阅者：
+ * --通过/websocket/{room}(WebSocketRoomDemo)连接时自动订阅该房间，普通消息只发布到该房间
+ * --"subscribe 主题"、"unsubscribe 主题"：订阅、退出主题，每个客户端最多订阅100个主题，主题总数最多10000个，
+ * 超过时订阅失败并回复客户端
+ * --"publish 主题 消息"：发布消息到该主题
+ * --通过/websocket连接且不是上述命令的消息仍然群发给所有客户端
+ * 8）在线客户端保存在以Session id为键的ConcurrentHashMap中，在线数用LongAdder计数，
+ * 连接和断开都是O(1)，大量客户端同时重连时不会反复复制整个集合，群发时弱一致地遍历，不加锁
+ * 9）二进制消息不需要再转成base64文本：onBinary()分段接收(ByteBuffer+last)，经池化缓冲区写入临时文件，
+ * 收完后分段原样返回给客户端，内存占用与消息大小无关。一个端点只能有一个二进制@OnMessage方法，
+ * ByteBuffer+last既能接收完整消息也能接收分段消息，所以没有再加byte[]+last的方法。
+ * 分段接收时容器的消息长度上限不再起作用，单条消息超过MAX_BINARY_SIZE时删除临时文件并以TOO_BIG关闭连接
  *
  * <p>
  * <br/>Copyright (C), 2017-2018, Steve Chang
@@ -20,8 +35,17 @@
 package org.xottys.server.http;
 
 import java.io.IOException;
-import java.util.concurrent.CopyOnWriteArraySet;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
 
+import javax.websocket.CloseReason;
 import javax.websocket.OnClose;
 import javax.websocket.OnError;
 import javax.websocket.OnMessage;
@@ -32,16 +56,41 @@ import javax.websocket.server.ServerEndpoint;
     //该注解用来指定一个URI（这里是：/websocket），客户端可以通过这个URI来连接到WebSocket。
     @ServerEndpoint("/websocket")
     public class WebSocketServerDemo {
-        //静态变量，用来记录当前在线连接数。
-        private static int onlineCount = 0;
+        //静态变量，用来记录当前在线连接数，多个线程同时增减时不会互相等待
+        private static final LongAdder onlineCount = new LongAdder();
 
-        //concurrent包的线程安全Set，用来存放每个客户端对应的WebSocketServerDemo对象。若要实现服务端与单一客户端通信的话，可以使用Map来存放，其中Key可以为用户标识
-        private static CopyOnWriteArraySet<WebSocketServerDemo> webSocketSet = new CopyOnWriteArraySet<WebSocketServerDemo>();
+        //concurrent包的线程安全Map，以Session id为键存放每个客户端对应的WebSocketServerDemo对象，也可以据此与单一客户端通信
+        private static final ConcurrentMap<String, WebSocketServerDemo> webSockets = new ConcurrentHashMap<>();
+
+        //主题(房间)订阅索引，每个客户端最多订阅100个主题，主题总数最多10000个
+        private static final WebSocketTopics topics = new WebSocketTopics(100, 10000);
+
+        //单条二进制消息最大不超过500M Bytes，与文件上传的上限相同
+        private static final long MAX_BINARY_SIZE = 500 * 1024 * 1024;
+
+        //接收和发送二进制消息时使用的堆外缓冲区
+        private static final BufferPool bufferPool = new BufferPool(64 * 1024, 64, true);
+
+        //群发引擎：每个客户端最多排队256条消息，超过时丢弃最早的消息，群发线程数为CPU核数，
+        //二进制消息的分段发送另用4个线程，最多同时向4个客户端分段发送
+        private static final WebSocketBroadcaster broadcaster = new WebSocketBroadcaster(256,
+                WebSocketBroadcaster.OverflowPolicy.DROP_OLDEST, Runtime.getRuntime().availableProcessors(), 4);
 
 
         //与某个客户端的连接会话，需要通过它来给客户端发送数据
         private Session session;
 
+        //通过/websocket/{room}连接时的房间，否则为null
+        private String room;
+
+        //正在接收的二进制消息，同一个连接的分段消息按顺序逐个到达
+        private Path binaryFile;
+        private FileChannel binaryChannel;
+        private ByteBuffer binaryBuffer;
+        private long binarySize;
+        //本条消息已出错，丢弃其余分段直到最后一段
+        private boolean binaryDiscarding;
+
         /**
          * 连接建立成功调用的方法
          * @param session  可选的参数。session为与某个客户端的连接会话，需要通过它来给客户端发送数据
@@ -49,8 +98,12 @@ import javax.websocket.server.ServerEndpoint;
         @OnOpen
         public void onOpen(Session session){
             this.session = session;
-            webSocketSet.add(this);     //加入set中
-            addOnlineCount();           //在线数加1
+            List<String> format = session.getRequestParameterMap().get("format");
+            broadcaster.register(session, format != null && format.contains("binary"));
+            room = session.getPathParameters().get("room");
+            if (room != null) subscribe(room);
+            if (webSockets.put(session.getId(), this) == null)     //加入map中
+                addOnlineCount();           //在线数加1
             System.out.println("有新连接加入！当前在线人数为" + getOnlineCount());
         }
 
@@ -60,8 +113,11 @@ import javax.websocket.server.ServerEndpoint;
          */
         @OnClose
         public void onClose(){
-            webSocketSet.remove(this);  //从set中删除
-            subOnlineCount();              //在线数减1
+            if (webSockets.remove(session.getId(), this))  //从map中删除
+                subOnlineCount();              //在线数减1
+            topics.unsubscribeAll(session);
+            broadcaster.unregister(session);
+            closeBinary(true);
             System.out.println("有一连接关闭！当前在线人数为" + getOnlineCount());
         }
 
@@ -75,15 +131,93 @@ import javax.websocket.server.ServerEndpoint;
         public void OnMessage(String message,Session session) {
             System.out.println("来自客户端的消息:" + message);
 
-            //给所有连接上的WebSocket客户端群发消息
-            for(WebSocketServerDemo item: webSocketSet)
-                try {
-                    sendMessage("WebSocket服务器返回："+message,item );
-                } catch (IOException e) {
-                    e.printStackTrace();
-                    continue;
+            //订阅命令
+            String[] command = message.split(" ", 3);
+            if (command.length == 2 && command[0].equals("subscribe")) {
+                subscribe(command[1]);
+                return;
+            }
+            if (command.length == 2 && command[0].equals("unsubscribe")) {
+                topics.unsubscribe(command[1], session);
+                return;
+            }
+            if (command.length == 3 && command[0].equals("publish")) {
+                publish(command[1], command[2]);
+                return;
+            }
+            if (room != null) {
+                publish(room, message);
+                return;
+            }
+
+            //给所有连接上的WebSocket客户端群发消息，内容只生成一次，由broadcaster异步发送，本方法立即返回
+            WebSocketBroadcaster.Frame frame = WebSocketBroadcaster.Frame.text("WebSocket服务器返回：" + message);
+            broadcaster.broadcast(() -> webSockets.values().stream().map(item -> item.session).iterator(), frame);
+        }
+
+        //订阅主题，达到上限时经发送队列回复客户端订阅失败
+        private void subscribe(String topic) {
+            try {
+                topics.subscribe(topic, session);
+            } catch (IllegalStateException e) {
+                System.out.println("订阅主题" + topic + "失败：" + e.getMessage());
+                broadcaster.send(session, WebSocketBroadcaster.Frame.text("订阅" + topic + "失败：" + e.getMessage()));
+            }
+        }
+
+        //只发送给订阅了topic的客户端，开销与订阅者数成正比，与总连接数无关
+        public static void publish(String topic, String message) {
+            WebSocketBroadcaster.Frame frame = WebSocketBroadcaster.Frame.text("WebSocket服务器返回[" + topic + "]：" + message);
+            broadcaster.broadcast(topics.subscribers(topic), frame);
+        }
+
+        /**
+         * 收到二进制消息(的一段)后调用的方法，大消息由容器分段交给本方法，不需要在内存中拼成完整的消息
+         * @param part 本段数据
+         * @param last 是否是消息的最后一段
+         */
+        @OnMessage
+        public void onBinary(ByteBuffer part, boolean last, Session session) {
+            if (binaryDiscarding) {
+                if (last) binaryDiscarding = false;
+                return;
+            }
+            try {
+                if (binarySize + part.remaining() > MAX_BINARY_SIZE) {
+                    System.out.println("二进制消息超过" + MAX_BINARY_SIZE + "字节，关闭连接：" + session.getId());
+                    closeBinary(true);
+                    binaryDiscarding = !last;
+                    session.close(new CloseReason(CloseReason.CloseCodes.TOO_BIG, "message too big"));
+                    return;
+                }
+                if (binaryChannel == null) {
+                    binaryFile = Files.createTempFile("websocket-", ".bin");
+                    binaryChannel = FileChannel.open(binaryFile, StandardOpenOption.WRITE);
+                    binaryBuffer = bufferPool.acquire();
+                    binarySize = 0;
+                }
+                binarySize += part.remaining();
+                //小的分段先在缓冲区中合并，缓冲区满时写入文件
+                while (part.hasRemaining()) {
+                    if (!binaryBuffer.hasRemaining()) writeBinary();
+                    int n = Math.min(part.remaining(), binaryBuffer.remaining());
+                    ByteBuffer slice = part.duplicate();
+                    slice.limit(slice.position() + n);
+                    binaryBuffer.put(slice);
+                    part.position(part.position() + n);
                 }
+                if (!last) return;
+                writeBinary();
+                System.out.println("来自客户端的二进制消息:" + binarySize + "字节");
+                Path file = binaryFile;
+                closeBinary(false);
+                sendBinary(file, session);
+            } catch (IOException e) {
+                e.printStackTrace();
+                closeBinary(true);
+                binaryDiscarding = !last;
             }
+        }
 
         /*接收数据的方法只能有一个，但方法名可以自定义，参数数量和类型必须符合规定：
           --原始数据类型：int，float,byte等
@@ -121,19 +255,83 @@ import javax.websocket.server.ServerEndpoint;
             * @ServerEndpoint(value="/websocket", encoders = { ServerEncoder.class })
             */
 
-            //异步发送消息
-            //this.session.getAsyncRemote().sendText(message);
+            //异步发送消息，经过发送队列，不会与群发的消息同时写出
+            //broadcaster.send(webSocketServerDemo.session, WebSocketBroadcaster.Frame.text(message));
         }
 
-        public static synchronized int getOnlineCount() {
-            return onlineCount;
+        /**
+         * 分段发送二进制消息，经过发送队列，不会与群发的消息同时写出，发送后或消息被丢弃时删除文件
+         * @param file 要发送的文件
+         */
+        public static void sendBinary(Path file, Session session) {
+            broadcaster.send(session, WebSocketBroadcaster.Frame.stream(remote -> {
+                ByteBuffer buffer = bufferPool.acquire();
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                    long remaining = channel.size();
+                    do {
+                        buffer.clear();
+                        while (buffer.hasRemaining() && channel.read(buffer) > 0) ;
+                        buffer.flip();
+                        remaining -= buffer.remaining();
+                        remote.sendBinary(buffer, remaining <= 0);
+                    } while (remaining > 0);
+                } finally {
+                    bufferPool.release(buffer);
+                    Files.deleteIfExists(file);
+                }
+            }, () -> deleteQuietly(file)));
         }
 
-        public static synchronized void addOnlineCount() {
-            WebSocketServerDemo.onlineCount++;
+        private static void deleteQuietly(Path file) {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        //较小的二进制消息直接异步发送，调用后不能再修改data
+        public static void sendBinary(ByteBuffer data, Session session) {
+            broadcaster.send(session, WebSocketBroadcaster.Frame.binary(data));
+        }
+
+        public static int getOnlineCount() {
+            return onlineCount.intValue();
+        }
+
+        public static void addOnlineCount() {
+            onlineCount.increment();
+        }
+
+        public static void subOnlineCount() {
+            onlineCount.decrement();
+        }
+
+        //把缓冲区中的数据写入文件
+        private void writeBinary() throws IOException {
+            binaryBuffer.flip();
+            while (binaryBuffer.hasRemaining()) binaryChannel.write(binaryBuffer);
+            binaryBuffer.clear();
+        }
+
+        //结束接收，delete为true时删除文件(连接关闭或出错)
+        private void closeBinary(boolean delete) {
+            if (binaryChannel == null) return;
+            try {
+                binaryChannel.close();
+                if (delete) Files.deleteIfExists(binaryFile);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            bufferPool.release(binaryBuffer);
+            binarySize = 0;
+            binaryChannel = null;
+            binaryBuffer = null;
+            binaryFile = null;
         }
 
-        public static synchronized void subOnlineCount() {
-            WebSocketServerDemo.onlineCount--;
+        //按Session id查找客户端，找不到时返回null
+        public static WebSocketServerDemo get(String sessionId) {
+            return webSockets.get(sessionId);
         }
     }
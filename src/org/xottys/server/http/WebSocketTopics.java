@@ -0,0 +1,110 @@
+/**
+ * 本类是WebSocketServerDemo的主题(房间)订阅索引，群发时只访问订阅了该主题的客户端：
+ * 1）以主题名为键保存订阅者集合(ConcurrentHashMap.newKeySet())，加入和退出都是O(1)，不需要复制整个集合
+ * 2）主题的创建和删除在ConcurrentHashMap.compute()中完成，最后一个订阅者退出时删除该主题，与同时加入的订阅者不会冲突
+ * 3）每个客户端订阅的主题保存在Session.getUserProperties()中，连接关闭时只退出自己订阅的主题
+ * 4）subscribers()返回弱一致的订阅者集合，遍历时不加锁，不受同时加入和退出的影响
+ * 5）主题由客户端随意指定，所以限制每个客户端可订阅的主题数和主题总数，超过时subscribe()抛出IllegalStateException，
+ * 避免恶意客户端订阅大量主题耗尽内存
+ * <p>
+ * <br/>Copyright (C), 2017-2018, Steve Chang
+ * <br/>This program is protected by copyright laws.
+ * <br/>Program Name:WebSocketTopics
+ * <br/>Date:May，2018
+ *
+ * @author xottys@163.com
+ * @version 1.0
+ */
+package org.xottys.server.http;
+
+import javax.websocket.Session;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+public class WebSocketTopics {
+    //Session.getUserProperties()中保存已订阅主题的键
+    private static final String TOPICS_KEY = WebSocketTopics.class.getName();
+
+    private final ConcurrentMap<String, Set<Session>> topics = new ConcurrentHashMap<>();
+    //每个客户端最多订阅的主题数
+    private final int maxTopicsPerSession;
+    //主题总数上限，并发创建时可能略微超出
+    private final int maxTopics;
+
+    public WebSocketTopics(int maxTopicsPerSession, int maxTopics) {
+        this.maxTopicsPerSession = maxTopicsPerSession;
+        this.maxTopics = maxTopics;
+    }
+
+    /**
+     * 订阅主题，返回false表示已经订阅过
+     * @throws IllegalStateException 该客户端订阅的主题数或主题总数已达上限
+     */
+    public boolean subscribe(String topic, Session session) {
+        Set<String> subscribed = topicsOf(session);
+        //同一客户端的消息按顺序处理，这里的检查不会与该客户端的其他订阅同时进行
+        if (!subscribed.contains(topic) && subscribed.size() >= maxTopicsPerSession)
+            throw new IllegalStateException("订阅的主题数已达上限" + maxTopicsPerSession);
+        boolean[] added = new boolean[1];
+        topics.compute(topic, (key, sessions) -> {
+            if (sessions == null) {
+                //在compute()中抛出异常时不会创建该主题
+                if (topics.size() >= maxTopics) throw new IllegalStateException("主题总数已达上限" + maxTopics);
+                sessions = ConcurrentHashMap.newKeySet();
+            }
+            added[0] = sessions.add(session);
+            return sessions;
+        });
+        if (added[0]) subscribed.add(topic);
+        return added[0];
+    }
+
+    //退出主题，返回false表示没有订阅过
+    public boolean unsubscribe(String topic, Session session) {
+        boolean[] removed = new boolean[1];
+        topics.computeIfPresent(topic, (key, sessions) -> {
+            removed[0] = sessions.remove(session);
+            return sessions.isEmpty() ? null : sessions;
+        });
+        topicsOf(session).remove(topic);
+        return removed[0];
+    }
+
+    //连接关闭时调用，退出该客户端订阅的所有主题
+    public void unsubscribeAll(Session session) {
+        @SuppressWarnings("unchecked")
+        Set<String> subscribed = (Set<String>) session.getUserProperties().remove(TOPICS_KEY);
+        if (subscribed == null) return;
+        for (String topic : subscribed) {
+            topics.computeIfPresent(topic, (key, sessions) -> {
+                sessions.remove(session);
+                return sessions.isEmpty() ? null : sessions;
+            });
+        }
+    }
+
+    //主题的订阅者，没有订阅者时返回空集合
+    public Set<Session> subscribers(String topic) {
+        Set<Session> sessions = topics.get(topic);
+        return sessions == null ? Collections.emptySet() : sessions;
+    }
+
+    //该客户端订阅的主题
+    public Set<String> topicsOf(Session session) {
+        @SuppressWarnings("unchecked")
+        Set<String> subscribed = (Set<String>) session.getUserProperties()
+                .computeIfAbsent(TOPICS_KEY, key -> ConcurrentHashMap.newKeySet());
+        return subscribed;
+    }
+
+    public int size() {
+        return topics.size();
+    }
+
+    @Override
+    public String toString() {
+        return "WebSocket topics: " + topics.size();
+    }
+}